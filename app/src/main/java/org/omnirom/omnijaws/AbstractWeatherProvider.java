@@ -18,47 +18,488 @@
 package org.omnirom.omnijaws;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
 import android.content.Context;
 import android.location.Location;
+import android.text.format.DateUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
+import android.util.LruCache;
+import android.util.MalformedJsonException;
 
 public abstract class AbstractWeatherProvider {
     private static final String TAG = "AbstractWeatherProvider";
     private static final boolean DEBUG = false;
+
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final int READ_TIMEOUT_MS = 20 * 1000;
+    private static final int POOL_TIMEOUT_MS = 5 * 1000;
+    private static final int MAX_CONNECTIONS_TOTAL = 8;
+    private static final int MAX_CONNECTIONS_PER_HOST = 2;
+    // keep idle connections for the requests of one refresh but
+    // don't hold sockets open between two refreshes
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    // classes of the last failed request, see getLastError()
+    static final int ERROR_NONE = 0;
+    static final int ERROR_NETWORK = 1;
+    static final int ERROR_HTTP_CLIENT = 2;
+    static final int ERROR_HTTP_SERVER = 3;
+    static final int ERROR_DATA = 4;
+
+    private static DefaultHttpClient sHttpClient;
+    private static final LruCache<String, WeatherInfo> sParsedWeather = new LruCache<>(4);
+
     protected Context mContext;
+    private String mUnchangedUrl;
+    private final Object mRequestLock = new Object();
+    private HttpGet mActiveRequest;
+    private boolean mCancelled;
+    private int mLastError = ERROR_NONE;
+    private long mRetryAfterMs;
 
     public AbstractWeatherProvider(Context context) {
         mContext = context;
     }
 
+    /**
+     * Aborts the request in flight and makes all further requests of this
+     * provider instance fail. Safe to call from any thread.
+     */
+    public void cancel() {
+        synchronized (mRequestLock) {
+            mCancelled = true;
+            if (mActiveRequest != null) {
+                mActiveRequest.abort();
+            }
+        }
+    }
+
+    protected boolean isCancelled() {
+        synchronized (mRequestLock) {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * Returns the class of error of the last request made by this provider
+     * instance or ERROR_NONE if it went through.
+     */
+    int getLastError() {
+        return mLastError;
+    }
+
+    /**
+     * Returns how long the server asked us to wait with a Retry-After header
+     * on its last 429 or 503 response or 0 if it did not.
+     */
+    long getRetryAfter() {
+        return mRetryAfterMs;
+    }
+
+    private static long parseRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000L);
+        } catch (NumberFormatException e) {
+            // not delta-seconds so it must be a HTTP-date
+        }
+        try {
+            return Math.max(0, org.apache.http.impl.cookie.DateUtils.parseDate(value).getTime()
+                    - System.currentTimeMillis());
+        } catch (DateParseException e) {
+            return 0;
+        }
+    }
+
+    protected static synchronized HttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setUseExpectContinue(params, false);
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT_MS);
+            HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT_MS);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setTimeout(params, POOL_TIMEOUT_MS);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS_TOTAL);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            ClientConnectionManager cm = new ThreadSafeClientConnManager(params, registry);
+            sHttpClient = new DefaultHttpClient(cm, params);
+            sHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                private final ConnectionKeepAliveStrategy mDefault =
+                        new DefaultConnectionKeepAliveStrategy();
+
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = mDefault.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, KEEP_ALIVE_MS) : KEEP_ALIVE_MS;
+                }
+            });
+            sHttpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context)
+                        throws HttpException, IOException {
+                    if (!request.containsHeader("Accept-Encoding")) {
+                        request.addHeader("Accept-Encoding", "gzip, deflate");
+                    }
+                }
+            });
+            sHttpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+                @Override
+                public void process(HttpResponse response, HttpContext context)
+                        throws HttpException, IOException {
+                    HttpEntity entity = response.getEntity();
+                    Header encoding = entity != null ? entity.getContentEncoding() : null;
+                    if (encoding == null) {
+                        return;
+                    }
+                    for (HeaderElement element : encoding.getElements()) {
+                        String name = element.getName();
+                        if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+                            response.setEntity(new DecompressingEntity(entity, false));
+                            return;
+                        } else if ("deflate".equalsIgnoreCase(name)) {
+                            response.setEntity(new DecompressingEntity(entity, true));
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * Decodes a gzip or deflate encoded response body while it is read
+     * so the parser never sees the compressed bytes.
+     */
+    private static class DecompressingEntity extends HttpEntityWrapper {
+        private final boolean mDeflate;
+
+        DecompressingEntity(HttpEntity entity, boolean deflate) {
+            super(entity);
+            mDeflate = deflate;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            InputStream in = wrappedEntity.getContent();
+            if (!mDeflate) {
+                return new GZIPInputStream(in);
+            }
+            // some servers send raw deflate data without the zlib header
+            PushbackInputStream pushback = new PushbackInputStream(in, 1);
+            int first = pushback.read();
+            if (first == -1) {
+                return pushback;
+            }
+            pushback.unread(first);
+            boolean zlib = (first & 0x0f) == 0x08;
+            return new InflaterInputStream(pushback, new Inflater(!zlib));
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+    }
+
+    /**
+     * Streaming parser for a JSON response body. {@link #reuse} lets a
+     * provider skip parsing when the body is unchanged since the last call.
+     */
+    protected static abstract class ResponseParser<T> {
+        protected abstract T parse(JsonReader reader) throws IOException;
+
+        /**
+         * Called instead of {@link #parse} when the response was answered
+         * from the response cache. Returning null parses the body anyway.
+         */
+        protected T reuse() {
+            return null;
+        }
+    }
+
+    private interface BodyHandler<T> {
+        T handle(InputStream in, String charset) throws IOException;
+    }
+
     protected String retrieve(String url) {
-        HttpGet request = new HttpGet(url);
+        return retrieve(new HttpGet(url), null);
+    }
+
+    protected String retrieve(HttpGet request, final String defaultCharset) {
+        return fetch(request, defaultCharset, new BodyHandler<String>() {
+            @Override
+            public String handle(InputStream in, String charset) throws IOException {
+                Reader reader = new InputStreamReader(in, charset);
+                StringBuilder sb = new StringBuilder();
+                char[] buffer = new char[4096];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    sb.append(buffer, 0, read);
+                }
+                return sb.toString();
+            }
+        }, null);
+    }
+
+    protected <T> T retrieveJson(String url, ResponseParser<T> parser) {
+        return retrieveJson(new HttpGet(url), parser);
+    }
+
+    protected <T> T retrieveJson(HttpGet request, final ResponseParser<T> parser) {
+        return fetch(request, "UTF-8", new BodyHandler<T>() {
+            @Override
+            public T handle(InputStream in, String charset) throws IOException {
+                JsonReader reader = new JsonReader(new InputStreamReader(in, charset));
+                try {
+                    return parser.parse(reader);
+                } catch (IllegalStateException | NumberFormatException e) {
+                    // thrown by JsonReader for unexpected token types
+                    throw new MalformedJsonException(e.getMessage());
+                }
+            }
+        }, parser);
+    }
+
+    private <T> T fetch(HttpGet request, String defaultCharset, BodyHandler<T> handler,
+            ResponseParser<T> parser) {
+        final String url = request.getURI().toString();
+        final ResponseCache cache = ResponseCache.get(mContext);
+        ResponseCache.Entry cached = cache.get(url);
+        mUnchangedUrl = null;
+        mLastError = ERROR_NONE;
+        mRetryAfterMs = 0;
         try {
-            HttpResponse response = new DefaultHttpClient().execute(request);
+            if (cached != null && cached.isFresh()) {
+                log(TAG, "Using cached response for url: " + url);
+                mUnchangedUrl = url;
+                return handleCached(cache, cached, handler, parser);
+            }
+            if (cached != null) {
+                if (cached.etag != null) {
+                    request.setHeader("If-None-Match", cached.etag);
+                }
+                if (cached.lastModified != null) {
+                    request.setHeader("If-Modified-Since", cached.lastModified);
+                }
+            }
+
+            synchronized (mRequestLock) {
+                if (mCancelled) {
+                    return null;
+                }
+                mActiveRequest = request;
+            }
+            final HttpClient client = getHttpClient();
+            client.getConnectionManager().closeExpiredConnections();
+            client.getConnectionManager().closeIdleConnections(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+            HttpResponse response = client.execute(request);
             int code = response.getStatusLine().getStatusCode();
-            if (code != HttpStatus.SC_OK) {
+            HttpEntity entity = response.getEntity();
+            if (code == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                log(TAG, "Not modified since last fetch of url: " + url);
+                if (entity != null) {
+                    entity.consumeContent();
+                }
+                cached = cache.update(cached, response);
+                mUnchangedUrl = url;
+                return handleCached(cache, cached, handler, parser);
+            }
+            if (!(code == HttpStatus.SC_OK || code == HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION)) {
                 log(TAG, "HttpStatus: " + code + " for url: " + url);
+                mLastError = code >= 500 ? ERROR_HTTP_SERVER : ERROR_HTTP_CLIENT;
+                if (code == 429 || code == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+                    mRetryAfterMs = parseRetryAfter(response);
+                }
+                if (entity != null) {
+                    // release the connection back to the pool
+                    entity.consumeContent();
+                }
                 return null;
             }
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                return EntityUtils.toString(entity);
+            if (entity == null) {
+                mLastError = ERROR_DATA;
+                return null;
             }
+            String charset = EntityUtils.getContentCharSet(entity);
+            if (charset == null) {
+                charset = defaultCharset != null ? defaultCharset : HTTP.DEFAULT_CONTENT_CHARSET;
+            }
+            InputStream content = entity.getContent();
+            try {
+                if (ResponseCache.isCacheable(response)) {
+                    cached = cache.put(url, response, charset, content);
+                    try (InputStream in = cache.openBody(cached)) {
+                        return handler.handle(in, charset);
+                    }
+                }
+                cache.remove(url);
+                return handler.handle(content, charset);
+            } finally {
+                content.close();
+            }
+        } catch (MalformedJsonException e) {
+            request.abort();
+            mLastError = ERROR_DATA;
+            // don't parse the same broken body again until it changes
+            cache.remove(url);
+            mUnchangedUrl = null;
+            Log.e(TAG, "Couldn't parse data from url " + url, e);
         } catch (IOException e) {
-            Log.e(TAG, "Couldn't retrieve data from url " + url, e);
+            request.abort();
+            mLastError = ERROR_NETWORK;
+            if (isCancelled()) {
+                log(TAG, "Cancelled request for url: " + url);
+            } else {
+                Log.e(TAG, "Couldn't retrieve data from url " + url, e);
+            }
+        } finally {
+            synchronized (mRequestLock) {
+                mActiveRequest = null;
+            }
         }
         return null;
     }
 
+    private <T> T handleCached(ResponseCache cache, ResponseCache.Entry entry,
+            BodyHandler<T> handler, ResponseParser<T> parser) throws IOException {
+        if (parser != null) {
+            T reused = parser.reuse();
+            if (reused != null) {
+                return reused;
+            }
+        }
+        try (InputStream in = cache.openBody(entry)) {
+            return handler.handle(in, entry.charset);
+        }
+    }
+
+    protected static double nextDoubleOrNaN(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return Double.NaN;
+        }
+        return reader.nextDouble();
+    }
+
+    protected static double[] readDoubleArray(JsonReader reader) throws IOException {
+        double[] values = new double[16];
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = nextDoubleOrNaN(reader);
+        }
+        reader.endArray();
+        return Arrays.copyOf(values, count);
+    }
+
+    protected static List<String> readStringArray(JsonReader reader) throws IOException {
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                values.add(null);
+            } else {
+                values.add(reader.nextString());
+            }
+        }
+        reader.endArray();
+        return values;
+    }
+
+    /**
+     * Returns the weather previously parsed from {@code url} if the last
+     * {@link #retrieve} of that url was answered from the response cache,
+     * so providers can skip parsing an unchanged document again.
+     */
+    protected WeatherInfo getUnchangedWeather(String url, boolean metric) {
+        if (!url.equals(mUnchangedUrl)) {
+            return null;
+        }
+        WeatherInfo info;
+        synchronized (sParsedWeather) {
+            info = sParsedWeather.get(url + metric);
+        }
+        if (info == null || !DateUtils.isToday(info.getTimestamp())) {
+            // forecast days are relative to the day they were parsed
+            return null;
+        }
+        log(TAG, "Reusing parsed weather for unchanged url: " + url);
+        return info.withTimestamp(System.currentTimeMillis());
+    }
+
+    protected void putParsedWeather(String url, boolean metric, WeatherInfo info) {
+        synchronized (sParsedWeather) {
+            sParsedWeather.put(url + metric, info);
+        }
+    }
+
     public abstract WeatherInfo getCustomWeather(String id, boolean metric);
 
     public abstract WeatherInfo getLocationWeather(Location location, boolean metric);
@@ -22,6 +22,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.preference.PreferenceManager;
+import android.util.Base64;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Config {
     public static final String PREF_KEY_PROVIDER = "provider";
@@ -29,19 +35,134 @@ public class Config {
     public static final String PREF_KEY_LOCATION_ID = "location_id";
     public static final String PREF_KEY_LOCATION_NAME = "location_name";
     public static final String PREF_KEY_CUSTOM_LOCATION = "custom_location";
+    // weather data is kept in WeatherSnapshot, these are only read for migration
     public static final String PREF_KEY_WEATHER_DATA = "weather_data";
+    public static final String PREF_KEY_WEATHER_DATA_BINARY = "weather_data_bin";
     public static final String PREF_KEY_LAST_UPDATE = "last_update";
     public static final String PREF_KEY_ENABLE = "enable";
     public static final String PREF_KEY_UPDATE_INTERVAL = "update_interval";
     public static final String PREF_KEY_ICON_PACK = "icon_pack";
     public static final String PREF_KEY_LAST_ALARM = "last_alarm";
     public static final String PREF_KEY_UPDATE_ERROR = "update_error";
+    public static final String PREF_KEY_PROVIDER_FALLBACK = "provider_fallback";
+    public static final String PREF_KEY_WEATHER_PROVIDER = "weather_provider";
+    public static final String PREF_KEY_PROVIDER_HEDGING = "provider_hedging";
+
+    private static volatile Settings sSettings;
+
+    // held here since SharedPreferences only keeps weak references to listeners
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sSettingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            loadSettings(prefs);
+        }
+    };
+
+    /**
+     * Immutable snapshot of the settings. A new one is built whenever a
+     * preference changes so readers only access plain fields.
+     */
+    static final class Settings {
+        final boolean enabled;
+        final String provider;
+        final boolean providerFallback;
+        final boolean providerHedging;
+        final String weatherProvider;
+        final boolean metric;
+        final boolean customLocation;
+        final String locationId;
+        final String locationName;
+        final int updateInterval;
+        final String iconPack;
+        final boolean updateError;
+
+        private Settings(SharedPreferences prefs) {
+            enabled = prefs.getBoolean(PREF_KEY_ENABLE, false);
+            provider = prefs.getString(PREF_KEY_PROVIDER, "0");
+            providerFallback = prefs.getBoolean(PREF_KEY_PROVIDER_FALLBACK, true);
+            providerHedging = prefs.getBoolean(PREF_KEY_PROVIDER_HEDGING, false);
+            weatherProvider = prefs.getString(PREF_KEY_WEATHER_PROVIDER, null);
+            metric = prefs.getString(PREF_KEY_UNITS, "0").equals("0");
+            customLocation = prefs.getBoolean(PREF_KEY_CUSTOM_LOCATION, false);
+            locationId = prefs.getString(PREF_KEY_LOCATION_ID, null);
+            locationName = prefs.getString(PREF_KEY_LOCATION_NAME, null);
+            updateInterval = parseInt(prefs.getString(PREF_KEY_UPDATE_INTERVAL, "2"), 2);
+            iconPack = prefs.getString(PREF_KEY_ICON_PACK, null);
+            updateError = prefs.getBoolean(PREF_KEY_UPDATE_ERROR, false);
+        }
+
+        private static int parseInt(String value, int defaultValue) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+    }
+
+    static Settings getSettings(Context context) {
+        Settings settings = sSettings;
+        if (settings == null) {
+            synchronized (Config.class) {
+                settings = sSettings;
+                if (settings == null) {
+                    settings = loadSettings(PreferenceManager.getDefaultSharedPreferences(context));
+                }
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Builds and publishes a new snapshot. Both happen under the lock so a
+     * snapshot built earlier can't replace a newer one.
+     */
+    private static Settings loadSettings(SharedPreferences prefs) {
+        synchronized (Config.class) {
+            if (sSettings == null) {
+                prefs.registerOnSharedPreferenceChangeListener(sSettingsListener);
+            }
+            Settings settings = new Settings(prefs);
+            sSettings = settings;
+            return settings;
+        }
+    }
 
     public static AbstractWeatherProvider getProvider(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
+        return createProvider(context, getSelectedProvider(context));
+    }
+
+    /**
+     * Returns the ids of the providers to try in order. The selected
+     * provider always comes first, the fallback providers are only added
+     * for location based updates since custom location ids are provider
+     * specific.
+     */
+    public static List<String> getProviderChain(Context context) {
+        Settings settings = getSettings(context);
+        List<String> chain = new ArrayList<>();
+        chain.add(settings.provider);
+        if (settings.providerFallback && !settings.customLocation) {
+            for (String provider : context.getResources().getStringArray(R.array.fallback_provider_values)) {
+                if (!chain.contains(provider)) {
+                    chain.add(provider);
+                }
+            }
+        }
+        return chain;
+    }
+
+    public static boolean isProviderHedging(Context context) {
+        return getSettings(context).providerHedging;
+    }
 
-        switch (prefs.getString(PREF_KEY_PROVIDER, "0"))
+    private static String getSelectedProvider(Context context) {
+        return getSettings(context).provider;
+    }
+
+    public static AbstractWeatherProvider createProvider(Context context, String provider) {
+        switch (provider)
         {
             case "1":
                 return new GismeteoProvider(context);
@@ -67,10 +188,9 @@ public class Config {
     }
 
     public static String getProviderId(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        String provider = prefs.getString(PREF_KEY_PROVIDER, "0");
+        // report the provider the current data came from which might be a fallback
+        Settings settings = getSettings(context);
+        String provider = settings.weatherProvider != null ? settings.weatherProvider : settings.provider;
         switch (provider)
         {
             case "1":
@@ -97,73 +217,72 @@ public class Config {
     }
 
     public static boolean isMetric(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_UNITS, "0").equals("0");
+        return getSettings(context).metric;
     }
 
     public static boolean isCustomLocation(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_CUSTOM_LOCATION, false);
+        return getSettings(context).customLocation;
     }
 
     public static String getLocationId(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_LOCATION_ID, null);
+        return getSettings(context).locationId;
     }
 
     public static void setLocationId(Context context, String id) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_LOCATION_ID, id).commit();
+        edit(context).putString(PREF_KEY_LOCATION_ID, id).apply();
     }
     
     public static String getLocationName(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_LOCATION_NAME, null);
+        return getSettings(context).locationName;
     }
     
     public static void setLocationName(Context context, String name) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_LOCATION_NAME, name).commit();
+        edit(context).putString(PREF_KEY_LOCATION_NAME, name).apply();
     }
 
     public static WeatherInfo getWeatherData(Context context) {
+        WeatherInfo data = WeatherSnapshot.read(context);
+        if (data != null) {
+            return data;
+        }
+
+        // migrate data stored in the preferences by older versions
         SharedPreferences prefs = PreferenceManager
                 .getDefaultSharedPreferences(context);
-
-        String str = prefs.getString(PREF_KEY_WEATHER_DATA, null);
+        String str = prefs.getString(PREF_KEY_WEATHER_DATA_BINARY, null);
         if (str != null) {
-            WeatherInfo data = WeatherInfo.fromSerializedString(context, str);
-            return data;
+            try {
+                data = WeatherInfo.fromBytes(context, Base64.decode(str, Base64.NO_WRAP));
+            } catch (IllegalArgumentException e) {
+                data = null;
+            }
+        } else {
+            str = prefs.getString(PREF_KEY_WEATHER_DATA, null);
+            if (str != null) {
+                data = WeatherInfo.fromSerializedString(context, str);
+            }
         }
-        return null;
+        if (str != null) {
+            if (data != null) {
+                WeatherSnapshot.write(context, data);
+            }
+            edit(context).remove(PREF_KEY_WEATHER_DATA)
+                    .remove(PREF_KEY_WEATHER_DATA_BINARY).apply();
+        }
+        return data;
     }
     
-    public static void setWeatherData(Context context, WeatherInfo data) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_WEATHER_DATA, data.toSerializedString()).commit();
-        prefs.edit().putLong(PREF_KEY_LAST_UPDATE, System.currentTimeMillis()).commit();
+    public static void setWeatherData(Context context, WeatherInfo data, String provider) {
+        edit(context).setWeatherData(data, provider).apply();
     }
 
     public static void clearWeatherData(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().remove(PREF_KEY_WEATHER_DATA).commit();
-        prefs.edit().remove(PREF_KEY_LAST_UPDATE).commit();
+        WeatherSnapshot.delete(context);
+        edit(context).remove(PREF_KEY_WEATHER_DATA)
+                .remove(PREF_KEY_WEATHER_DATA_BINARY)
+                .remove(PREF_KEY_WEATHER_PROVIDER)
+                .remove(PREF_KEY_LAST_UPDATE)
+                .apply();
     }
     
     public static long getLastUpdateTime(Context context) {
@@ -174,47 +293,29 @@ public class Config {
     }
 
     public static void clearLastUpdateTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putLong(PREF_KEY_LAST_UPDATE, 0).commit();
-        prefs.edit().putLong(PREF_KEY_LAST_ALARM, 0).commit();
+        edit(context).putLong(PREF_KEY_LAST_UPDATE, 0)
+                .putLong(PREF_KEY_LAST_ALARM, 0)
+                .apply();
     }
 
     public static boolean isEnabled(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_ENABLE, false);
+        return getSettings(context).enabled;
     }
 
-    public static boolean setEnabled(Context context, boolean value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.edit().putBoolean(PREF_KEY_ENABLE, value).commit();
+    public static void setEnabled(Context context, boolean value) {
+        edit(context).putBoolean(PREF_KEY_ENABLE, value).apply();
     }
 
     public static int getUpdateInterval(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        String valueString = prefs.getString(PREF_KEY_UPDATE_INTERVAL, "2");
-        return Integer.valueOf(valueString);
+        return getSettings(context).updateInterval;
     }
 
     public static String getIconPack(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getString(PREF_KEY_ICON_PACK, null);
+        return getSettings(context).iconPack;
     }
 
     public static void setIconPack(Context context, String value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putString(PREF_KEY_ICON_PACK, value).commit();
+        edit(context).putString(PREF_KEY_ICON_PACK, value).apply();
     }
 
     public static long getLastAlarmTime(Context context) {
@@ -225,24 +326,110 @@ public class Config {
     }
 
     public static void setLastAlarmTime(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        prefs.edit().putLong(PREF_KEY_LAST_ALARM, System.currentTimeMillis()).commit();
+        edit(context).setLastAlarmTime().apply();
     }
 
     public static boolean isUpdateError(Context context) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
-
-        return prefs.getBoolean(PREF_KEY_UPDATE_ERROR, false);
+        return getSettings(context).updateError;
     }
 
     public static void setUpdateError(Context context, boolean value) {
-        SharedPreferences prefs = PreferenceManager
-                .getDefaultSharedPreferences(context);
+        edit(context).setUpdateError(value).apply();
+    }
 
-        prefs.edit().putBoolean(PREF_KEY_UPDATE_ERROR, value).commit();
+    public static Batch edit(Context context) {
+        return new Batch(context);
+    }
+
+    /**
+     * Collects preference changes and writes them with one asynchronous
+     * apply(). Values equal to the stored ones are skipped and nothing is
+     * written at all if no value changed. The in-memory preferences are
+     * updated right away and the framework flushes pending writes to disk
+     * before the service or activity is stopped.
+     */
+    public static class Batch {
+        private final Context mContext;
+        private final SharedPreferences mPrefs;
+        // null values are removals
+        private final Map<String, Object> mChanges = new LinkedHashMap<>();
+
+        private Batch(Context context) {
+            mContext = context;
+            mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        }
+
+        public Batch putString(String key, String value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public Batch putLong(String key, long value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public Batch putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        public Batch remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        /**
+         * Writes the snapshot file right away and queues the matching
+         * preference changes.
+         */
+        public Batch setWeatherData(WeatherInfo data, String provider) {
+            WeatherSnapshot.write(mContext, data);
+            return putString(PREF_KEY_WEATHER_PROVIDER, provider)
+                    .putLong(PREF_KEY_LAST_UPDATE, System.currentTimeMillis());
+        }
+
+        public Batch setUpdateError(boolean value) {
+            return putBoolean(PREF_KEY_UPDATE_ERROR, value);
+        }
+
+        public Batch setLastAlarmTime() {
+            return putLong(PREF_KEY_LAST_ALARM, System.currentTimeMillis());
+        }
+
+        public void apply() {
+            if (mChanges.isEmpty()) {
+                return;
+            }
+            Map<String, ?> stored = mPrefs.getAll();
+            SharedPreferences.Editor editor = null;
+            for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                String key = change.getKey();
+                Object value = change.getValue();
+                if (value == null ? !stored.containsKey(key) : value.equals(stored.get(key))) {
+                    continue;
+                }
+                if (editor == null) {
+                    editor = mPrefs.edit();
+                }
+                if (value == null) {
+                    editor.remove(key);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(key, (Boolean) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(key, (Long) value);
+                } else {
+                    editor.putString(key, (String) value);
+                }
+            }
+            mChanges.clear();
+            if (editor != null) {
+                editor.apply();
+                // listeners may be notified later on the main thread
+                // but the writing thread must see its own changes
+                loadSettings(mPrefs);
+            }
+        }
     }
 
     public static boolean isSetupDone(Context context) {
@@ -7,11 +7,11 @@ import android.location.Address;
 import android.location.Geocoder;
 import android.location.Location;
 import android.net.Uri;
+import android.util.JsonReader;
 import android.util.Log;
+import android.util.MalformedJsonException;
 import android.text.TextUtils;
 
-import org.apache.http.client.HttpClient;
-import org.apache.http.params.CoreProtocolPNames;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -28,15 +28,11 @@ import java.util.Locale;
 import java.io.IOException;
 import java.util.TimeZone;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
 
 public class METNorwayProvider extends AbstractWeatherProvider {
     private static final String TAG = "METNorwayProvider";
+    private static final String USER_AGENT = "OmniJawsApp/1.0";
 
     private static final String URL_WEATHER =
             "https://api.met.no/weatherapi/locationforecast/2.0/?";
@@ -98,59 +94,228 @@ public class METNorwayProvider extends AbstractWeatherProvider {
         return getAllWeather(id, metric);
     }
 
-    private WeatherInfo getAllWeather(String coordinates, boolean metric) {
-        String url = URL_WEATHER + coordinates;
-        String response = retrieve(url);
-        if (response == null) {
+    private WeatherInfo getAllWeather(final String coordinates, final boolean metric) {
+        final String url = URL_WEATHER + coordinates;
+        WeatherInfo w = retrieveJson(newRequest(url), new ResponseParser<WeatherInfo>() {
+            @Override
+            protected WeatherInfo parse(JsonReader reader) throws IOException {
+                return parseWeather(parseTimeseries(reader), coordinates, metric);
+            }
+
+            @Override
+            protected WeatherInfo reuse() {
+                return getUnchangedWeather(url, metric);
+            }
+        });
+        if (w == null) {
+            Log.w(TAG, "No weather data (coordinates = " + coordinates + ")");
             return null;
         }
-        log(TAG, "URL = " + url + " returning a response of " + response);
+        log(TAG, "URL = " + url + " weather updated: " + w);
+        putParsedWeather(url, metric, w);
+        return w;
+    }
 
-        try {
-            JSONArray timeseries = new JSONObject(response).getJSONObject("properties").getJSONArray("timeseries");
-            JSONObject weather = timeseries.getJSONObject(0).getJSONObject("data").getJSONObject("instant").getJSONObject("details");
+    private WeatherInfo parseWeather(List<TimeStep> timeseries, String coordinates, boolean metric) throws IOException {
+        if (timeseries.isEmpty()) {
+            throw new MalformedJsonException("Empty timeseries");
+        }
+        TimeStep weather = timeseries.get(0);
+
+        String symbolCode = getSymbolCode(weather.symbolOneHour);
+        int weatherCode = arrayWeatherIconToCode[getPriorityCondition(symbolCode)];
+
+        // Check Available Night Icon
+        if(symbolCode.contains("_night") && (weatherCode == 30 || weatherCode == 32 || weatherCode == 34)) {
+            weatherCode -= 1;
+        }
+
+        String city = getNameLocality(coordinates);
+        if (TextUtils.isEmpty(city)) {
+            city = mContext.getResources().getString(R.string.omnijaws_city_unknown);
+        }
+
+        return new WeatherInfo(mContext,
+                /* id */ coordinates,
+                /* cityId */ city,
+                /* condition */ symbolCode,
+                /* conditionCode */ weatherCode,
+                /* temperature */ convertTemperature(weather.airTemperature, metric),
+                /* humidity */ (float) weather.relativeHumidity,
+                /* wind */ convertWindSpeed(weather.windSpeed, metric),
+                /* windDir */ (int) weather.windFromDirection,
+                metric,
+                parseForecasts(timeseries, metric),
+                System.currentTimeMillis());
+    }
 
-            String symbolCode = timeseries.getJSONObject(0).getJSONObject("data").getJSONObject("next_1_hours").getJSONObject("summary").getString("symbol_code");
-            int weatherCode = arrayWeatherIconToCode[getPriorityCondition(symbolCode)];
+    /**
+     * The few values of one timeseries entry that are used for the current
+     * weather and the daily forecasts.
+     */
+    private static class TimeStep {
+        String time; // in the user's time zone
+        double airTemperature = Double.NaN;
+        double relativeHumidity = Double.NaN;
+        double windSpeed = Double.NaN;
+        double windFromDirection = Double.NaN;
+        String symbolOneHour;
+        String symbolSixHours;
+        String symbolTwelveHours;
+    }
 
-            // Check Available Night Icon
-            if(symbolCode.contains("_night") && (weatherCode == 30 || weatherCode == 32 || weatherCode == 34)) {
-                weatherCode -= 1;
+    private List<TimeStep> parseTimeseries(JsonReader reader) throws IOException {
+        List<TimeStep> timeseries = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"properties".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"timeseries".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                timeseries = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    timeseries.add(parseTimeStep(reader));
+                }
+                reader.endArray();
             }
+            reader.endObject();
+        }
+        reader.endObject();
+        if (timeseries == null) {
+            throw new MalformedJsonException("Missing timeseries");
+        }
+        return timeseries;
+    }
 
-            String city = getNameLocality(coordinates);
-            if (TextUtils.isEmpty(city)) {
-                city = mContext.getResources().getString(R.string.omnijaws_city_unknown);
+    private TimeStep parseTimeStep(JsonReader reader) throws IOException {
+        TimeStep step = new TimeStep();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "time":
+                    step.time = convertTimeZone(reader.nextString());
+                    break;
+                case "data":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "instant":
+                                parseInstant(reader, step);
+                                break;
+                            case "next_1_hours":
+                                step.symbolOneHour = parseSymbolCode(reader);
+                                break;
+                            case "next_6_hours":
+                                step.symbolSixHours = parseSymbolCode(reader);
+                                break;
+                            case "next_12_hours":
+                                step.symbolTwelveHours = parseSymbolCode(reader);
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
             }
+        }
+        reader.endObject();
+        if (step.time == null) {
+            throw new MalformedJsonException("Time step without time");
+        }
+        return step;
+    }
 
-            WeatherInfo w = new WeatherInfo(mContext,
-                    /* id */ coordinates,
-                    /* cityId */ city,
-                    /* condition */ symbolCode,
-                    /* conditionCode */ weatherCode,
-                    /* temperature */ convertTemperature(weather.getDouble("air_temperature"), metric),
-                    /* humidity */ (float) weather.getDouble("relative_humidity"),
-                    /* wind */ convertWindSpeed(weather.getDouble("wind_speed"), metric),
-                    /* windDir */ (int) weather.getDouble("wind_from_direction"),
-                    metric,
-                    parseForecasts(timeseries, metric),
-                    System.currentTimeMillis());
-
-            log(TAG, "Weather updated: " + w);
-            return w;
-        } catch (JSONException e) {
-            Log.w(TAG, "Received malformed weather data (coordinates = " + coordinates + ")", e);
+    private static void parseInstant(JsonReader reader, TimeStep step) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"details".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "air_temperature":
+                        step.airTemperature = nextDoubleOrNaN(reader);
+                        break;
+                    case "relative_humidity":
+                        step.relativeHumidity = nextDoubleOrNaN(reader);
+                        break;
+                    case "wind_speed":
+                        step.windSpeed = nextDoubleOrNaN(reader);
+                        break;
+                    case "wind_from_direction":
+                        step.windFromDirection = nextDoubleOrNaN(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
         }
+        reader.endObject();
+    }
 
-        return null;
+    private static String parseSymbolCode(JsonReader reader) throws IOException {
+        String symbolCode = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"summary".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("symbol_code".equals(reader.nextName())) {
+                    symbolCode = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        // an empty string still marks the period as present
+        return symbolCode != null ? symbolCode : "";
     }
 
-    private ArrayList<DayForecast> parseForecasts(JSONArray timeseries, boolean metric) throws JSONException {
+    private static String getSymbolCode(String symbolCode) throws MalformedJsonException {
+        if (TextUtils.isEmpty(symbolCode)) {
+            throw new MalformedJsonException("Missing symbol_code");
+        }
+        return symbolCode;
+    }
+
+    private static TimeStep getTimeStep(List<TimeStep> timeseries, int index) throws MalformedJsonException {
+        if (index >= timeseries.size()) {
+            throw new MalformedJsonException("Missing time step " + index);
+        }
+        return timeseries.get(index);
+    }
+
+    private static double getAirTemperature(TimeStep step) throws MalformedJsonException {
+        if (Double.isNaN(step.airTemperature)) {
+            throw new MalformedJsonException("Missing air_temperature at " + step.time);
+        }
+        return step.airTemperature;
+    }
+
+    private ArrayList<DayForecast> parseForecasts(List<TimeStep> timeseries, boolean metric) throws IOException {
         ArrayList<DayForecast> result = new ArrayList<>(5);
-        int count = timeseries.length();
+        int count = timeseries.size();
 
         if (count == 0) {
-            throw new JSONException("Empty forecasts array");
+            throw new MalformedJsonException("Empty forecasts array");
         }
 
         Calendar calendar = Calendar.getInstance();
@@ -159,11 +324,11 @@ public class METNorwayProvider extends AbstractWeatherProvider {
 
         int whileIndex = 0;
 
-        while (convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains(yesterday)) {
+        while (getTimeStep(timeseries, whileIndex).time.contains(yesterday)) {
             whileIndex++;
         }
 
-        boolean endDay = (whileIndex == 0) && isEndDay(convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")));
+        boolean endDay = (whileIndex == 0) && isEndDay(getTimeStep(timeseries, whileIndex).time);
 
         for (int i = 0; i < 5; i++) {
             DayForecast item;
@@ -180,8 +345,9 @@ public class METNorwayProvider extends AbstractWeatherProvider {
                 String conditionDescription = "";
                 String cdSixToEighteen = ""; // conditionDescription at 06:00 or 12:00
 
-                while (convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains(day)) {
-                    double tempI = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject("instant").getJSONObject("details").getDouble("air_temperature");
+                while (getTimeStep(timeseries, whileIndex).time.contains(day)) {
+                    TimeStep step = timeseries.get(whileIndex);
+                    double tempI = getAirTemperature(step);
 
                     if (tempI > temp_max) {
                         temp_max = tempI;
@@ -190,16 +356,14 @@ public class METNorwayProvider extends AbstractWeatherProvider {
                         temp_min = tempI;
                     }
 
-                    boolean hasOneHour = timeseries.getJSONObject(whileIndex).getJSONObject("data").has("next_1_hours");
-                    boolean hasSixHours = timeseries.getJSONObject(whileIndex).getJSONObject("data").has("next_6_hours");
-                    boolean hasTwelveHours = timeseries.getJSONObject(whileIndex).getJSONObject("data").has("next_12_hours");
+                    boolean hasOneHour = step.symbolOneHour != null;
+                    boolean hasSixHours = step.symbolSixHours != null;
+                    boolean hasTwelveHours = step.symbolTwelveHours != null;
 
                     hasFastCondition = scSixToEighteen != 0 || (scSixToTwelve != 0 && scTwelveToEighteen != 0);
 
-                    if (!hasFastCondition && ((i == 0 && endDay) || isMorningOrAfternoon(convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")), hasOneHour))) {
-                        String stepHours = hasOneHour ? "next_1_hours" : "next_6_hours";
-
-                        String stepTextSymbolCode = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject(stepHours).getJSONObject("summary").getString("symbol_code");
+                    if (!hasFastCondition && ((i == 0 && endDay) || isMorningOrAfternoon(step.time, hasOneHour))) {
+                        String stepTextSymbolCode = getSymbolCode(hasOneHour ? step.symbolOneHour : step.symbolSixHours);
                         int stepSymbolCode = getPriorityCondition(stepTextSymbolCode);
 
                         if (stepSymbolCode > symbolCode) {
@@ -208,17 +372,17 @@ public class METNorwayProvider extends AbstractWeatherProvider {
                         }
 
                         if(hasSixHours || hasTwelveHours) {
-                            if (convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains("T06")) {
-                                String textSymbolCode = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject(hasTwelveHours ? "next_12_hours" : "next_6_hours").getJSONObject("summary").getString("symbol_code");
+                            if (step.time.contains("T06")) {
+                                String textSymbolCode = getSymbolCode(hasTwelveHours ? step.symbolTwelveHours : step.symbolSixHours);
                                 if (hasTwelveHours) {
                                     scSixToEighteen = getPriorityCondition(textSymbolCode);
-                                    cdSixToEighteen = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject("next_12_hours").getJSONObject("summary").getString("symbol_code");
+                                    cdSixToEighteen = textSymbolCode;
                                 } else {
                                     scSixToTwelve = getPriorityCondition(textSymbolCode);
                                     cdSixToEighteen = textSymbolCode;
                                 }
-                            } else if (scSixToTwelve != 0 && convertTimeZone(timeseries.getJSONObject(whileIndex).getString("time")).contains("T12")) {
-                                String textSymbolCode = timeseries.getJSONObject(whileIndex).getJSONObject("data").getJSONObject("next_6_hours").getJSONObject("summary").getString("symbol_code");
+                            } else if (scSixToTwelve != 0 && step.time.contains("T12")) {
+                                String textSymbolCode = getSymbolCode(step.symbolSixHours);
                                 scTwelveToEighteen = getPriorityCondition(textSymbolCode);
 
                                 if (scSixToTwelve < scTwelveToEighteen) {
@@ -242,7 +406,7 @@ public class METNorwayProvider extends AbstractWeatherProvider {
                         /* conditionCode */ arrayWeatherIconToCode[symbolCode],
                         day,
                         metric);
-            } catch (JSONException e) {
+            } catch (MalformedJsonException e) {
                 Log.w(TAG, "Invalid forecast for day " + i + " creating dummy", e);
                 item = new DayForecast(
                         /* low */ 0,
@@ -328,26 +492,16 @@ public class METNorwayProvider extends AbstractWeatherProvider {
         return SYMBOL_CODE_MAPPING.getOrDefault(condition, 0);
     }
 
+    private static HttpGet newRequest(String url) {
+        // api.met.no rejects requests without an identifying user agent
+        HttpGet request = new HttpGet(url);
+        request.setHeader("User-Agent", USER_AGENT);
+        return request;
+    }
+
     @Override
     protected String retrieve(String url) {
-        HttpGet request = new HttpGet(url);
-        try {
-            HttpClient client = new DefaultHttpClient();
-            client.getParams().setParameter(CoreProtocolPNames.USER_AGENT, "OmniJawsApp/1.0");
-            HttpResponse response = client.execute(request);
-            int code = response.getStatusLine().getStatusCode();
-            if (!(code == HttpStatus.SC_OK || code == HttpStatus.SC_NON_AUTHORITATIVE_INFORMATION)) {
-                log(TAG, "HttpStatus: " + code + " for url: " + url);
-                return null;
-            }
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                return EntityUtils.toString(entity);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Couldn't retrieve data from url " + url, e);
-        }
-        return null;
+        return retrieve(newRequest(url), null);
     }
 
     private void initTimeZoneFormat() {
@@ -6,7 +6,9 @@ import android.location.Geocoder;
 import android.location.Location;
 import android.net.Uri;
 import android.text.TextUtils;
+import android.util.JsonReader;
 import android.util.Log;
+import android.util.MalformedJsonException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -81,78 +83,168 @@ public class OpenMeteoProvider extends AbstractWeatherProvider {
         return getWeather(id, metric);
     }
 
-    private WeatherInfo getWeather(String coordinates, boolean metric) {
+    private WeatherInfo getWeather(final String coordinates, final boolean metric) {
         String tempUnit = metric ? "celsius" : "fahrenheit";
         String speedUnit = metric ? "kmh" : "mph";
         String timeZone = java.util.TimeZone.getDefault().getID();
-        String url = String.format(Locale.US,URL_WEATHER + PART_PARAMETERS, coordinates, tempUnit, speedUnit, timeZone);
-        String response = retrieve(url);
-        if (response == null) {
+        final String url = String.format(Locale.US,URL_WEATHER + PART_PARAMETERS, coordinates, tempUnit, speedUnit, timeZone);
+        WeatherInfo w = retrieveJson(url, new ResponseParser<WeatherInfo>() {
+            @Override
+            protected WeatherInfo parse(JsonReader reader) throws IOException {
+                return parseWeather(reader, coordinates, metric);
+            }
+
+            @Override
+            protected WeatherInfo reuse() {
+                return getUnchangedWeather(url, metric);
+            }
+        });
+        if (w == null) {
+            Log.w(TAG, "No weather data (coordinates = " + coordinates + ")");
             return null;
         }
-        log(TAG, "URL = " + url + " returning a response of " + response);
-
-        try {
-            JSONObject weather = new JSONObject(response).getJSONObject("current_weather");
-
-            int weathercode = weather.getInt("weathercode");
-            boolean isDay = weather.getInt("is_day") == 1;
+        log(TAG, "URL = " + url + " weather updated: " + w);
+        putParsedWeather(url, metric, w);
+        return w;
+    }
 
-            WeatherInfo w = new WeatherInfo(mContext,
-                    /* id */ coordinates,
-                    /* cityId */ getNameLocality(coordinates),
-                    /* condition */ getWeatherDescription(weathercode),
-                    /* conditionCode */ getWeatherIcon(weathercode, isDay),
-                    /* temperature */ (float) weather.getDouble("temperature"),
+    private WeatherInfo parseWeather(JsonReader reader, String coordinates, boolean metric) throws IOException {
+        boolean hasCurrent = false;
+        int weathercode = 0;
+        boolean isDay = true;
+        float temperature = Float.NaN;
+        float windSpeed = Float.NaN;
+        int windDirection = 0;
+        float humidity = Float.NaN;
+        boolean hasHourly = false;
+        ArrayList<WeatherInfo.DayForecast> forecasts = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "current_weather":
+                    hasCurrent = true;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.nextName()) {
+                            case "weathercode":
+                                weathercode = reader.nextInt();
+                                break;
+                            case "is_day":
+                                isDay = reader.nextInt() == 1;
+                                break;
+                            case "temperature":
+                                temperature = (float) reader.nextDouble();
+                                break;
+                            case "windspeed":
+                                windSpeed = (float) reader.nextDouble();
+                                break;
+                            case "winddirection":
+                                windDirection = (int) reader.nextDouble();
+                                break;
+                            default:
+                                reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case "hourly":
                     // Api: Possibly future inclusion humidity in current weather; may eliminate need for hourly forecast request.
-                    /* humidity */ getCurrentHumidity(new JSONObject(response).getJSONObject("hourly")),
-                    /* wind */ (float) weather.getDouble("windspeed"),
-                    /* windDir */ weather.getInt("winddirection"),
-                    metric,
-                    parseForecasts(new JSONObject(response).getJSONObject("daily"), metric),
-                    System.currentTimeMillis());
-
-            log(TAG, "Weather updated: " + w);
-            return w;
-        } catch (JSONException e) {
-            Log.w(TAG, "Received malformed weather data (coordinates = " + coordinates + ")", e);
+                    hasHourly = true;
+                    humidity = parseCurrentHumidity(reader);
+                    break;
+                case "daily":
+                    forecasts = parseForecasts(reader, metric);
+                    break;
+                default:
+                    reader.skipValue();
+            }
         }
+        reader.endObject();
 
-        return null;
+        if (!hasCurrent || !hasHourly || forecasts == null) {
+            throw new MalformedJsonException("Incomplete weather data (coordinates = " + coordinates + ")");
+        }
+
+        return new WeatherInfo(mContext,
+                /* id */ coordinates,
+                /* cityId */ getNameLocality(coordinates),
+                /* condition */ getWeatherDescription(weathercode),
+                /* conditionCode */ getWeatherIcon(weathercode, isDay),
+                /* temperature */ temperature,
+                /* humidity */ humidity,
+                /* wind */ windSpeed,
+                /* windDir */ windDirection,
+                metric,
+                forecasts,
+                System.currentTimeMillis());
     }
 
-    private ArrayList<WeatherInfo.DayForecast> parseForecasts(JSONObject dailyForecasts, boolean metric) throws JSONException {
+    private ArrayList<WeatherInfo.DayForecast> parseForecasts(JsonReader reader, boolean metric) throws IOException {
         ArrayList<WeatherInfo.DayForecast> result = new ArrayList<>(5);
 
-        JSONArray timeJson = dailyForecasts.getJSONArray("time");
-        JSONArray temperatureMinJson = dailyForecasts.getJSONArray("temperature_2m_min_best_match");
-        JSONArray temperatureMaxJson = dailyForecasts.getJSONArray("temperature_2m_max_best_match");
-        JSONArray weatherCodeJson = dailyForecasts.getJSONArray("weathercode_best_match");
-        JSONArray altWeatherCodeJson = dailyForecasts.getJSONArray("weathercode_gfs_seamless");
+        List<String> timeJson = null;
+        double[] temperatureMinJson = null;
+        double[] temperatureMaxJson = null;
+        double[] weatherCodeJson = null;
+        double[] altWeatherCodeJson = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "time":
+                    timeJson = readStringArray(reader);
+                    break;
+                case "temperature_2m_min_best_match":
+                    temperatureMinJson = readDoubleArray(reader);
+                    break;
+                case "temperature_2m_max_best_match":
+                    temperatureMaxJson = readDoubleArray(reader);
+                    break;
+                case "weathercode_best_match":
+                    weatherCodeJson = readDoubleArray(reader);
+                    break;
+                case "weathercode_gfs_seamless":
+                    altWeatherCodeJson = readDoubleArray(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (timeJson == null || temperatureMinJson == null || temperatureMaxJson == null
+                || weatherCodeJson == null || altWeatherCodeJson == null || timeJson.isEmpty()) {
+            throw new MalformedJsonException("Incomplete daily forecast");
+        }
+
         String currentDay = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(Calendar.getInstance().getTime());
 
         int startIndex = 1;
-        if (currentDay.equals(timeJson.getString(0)))
+        if (currentDay.equals(timeJson.get(0)))
             startIndex = 0;
-        else if (currentDay.equals(timeJson.getString(2)))
+        else if (timeJson.size() > 2 && currentDay.equals(timeJson.get(2)))
             startIndex = 2;
 
-        for (int i = startIndex; i < timeJson.length() && result.size() < 5; i++) {
+        for (int i = startIndex; i < timeJson.size() && result.size() < 5; i++) {
             WeatherInfo.DayForecast item;
-            int weatherCode = weatherCodeJson.getInt(i);
-            if(weatherCode == 45 || weatherCode == 48)
-                weatherCode = altWeatherCodeJson.getInt(i);
-
-            try {
+            double weatherCode = i < weatherCodeJson.length ? weatherCodeJson[i] : Double.NaN;
+            if ((weatherCode == 45 || weatherCode == 48)
+                    && i < altWeatherCodeJson.length && !Double.isNaN(altWeatherCodeJson[i]))
+                weatherCode = altWeatherCodeJson[i];
+
+            double low = i < temperatureMinJson.length ? temperatureMinJson[i] : Double.NaN;
+            double high = i < temperatureMaxJson.length ? temperatureMaxJson[i] : Double.NaN;
+            if (!Double.isNaN(weatherCode) && !Double.isNaN(low) && !Double.isNaN(high)) {
                 item = new WeatherInfo.DayForecast(
-                        /* low */ (float) temperatureMinJson.getDouble(i),
-                        /* high */ (float) temperatureMaxJson.getDouble(i),
-                        /* condition */ getWeatherDescription(weatherCode),
-                        /* conditionCode */ getWeatherIcon(weatherCode, true),
-                        timeJson.getString(i),
+                        /* low */ (float) low,
+                        /* high */ (float) high,
+                        /* condition */ getWeatherDescription((int) weatherCode),
+                        /* conditionCode */ getWeatherIcon((int) weatherCode, true),
+                        timeJson.get(i),
                         metric);
-            } catch (JSONException e) {
-                Log.w(TAG, "Invalid forecast for day " + i + " creating dummy", e);
+            } else {
+                Log.w(TAG, "Invalid forecast for day " + i + " creating dummy");
                 item = new WeatherInfo.DayForecast(
                         /* low */ 0,
                         /* high */ 0,
@@ -181,19 +273,41 @@ public class OpenMeteoProvider extends AbstractWeatherProvider {
         return result;
     }
 
-    private static float getCurrentHumidity(JSONObject hourlyJson) throws JSONException {
+    private static float parseCurrentHumidity(JsonReader reader) throws IOException {
         String currentHour = new SimpleDateFormat("yyyy-MM-dd'T'HH", Locale.US).format(Calendar.getInstance().getTime());
-        JSONArray hourlyTimes = hourlyJson.getJSONArray("time");
-        JSONArray hourlyHumidity = hourlyJson.getJSONArray("relativehumidity_2m_best_match");
-
-        int currentIndex = 36;
-        for (int i = 0; i < hourlyTimes.length(); i++)
-            if (hourlyTimes.getString(i).startsWith(currentHour)) {
-                currentIndex = i;
-                break;
+        int currentIndex = -1;
+        double[] hourlyHumidity = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "time":
+                    // only the position of the current hour is needed
+                    reader.beginArray();
+                    for (int i = 0; reader.hasNext(); i++) {
+                        String time = reader.nextString();
+                        if (currentIndex == -1 && time.startsWith(currentHour)) {
+                            currentIndex = i;
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                case "relativehumidity_2m_best_match":
+                    hourlyHumidity = readDoubleArray(reader);
+                    break;
+                default:
+                    reader.skipValue();
             }
+        }
+        reader.endObject();
 
-        return (float) hourlyHumidity.getDouble(currentIndex);
+        if (hourlyHumidity == null) {
+            throw new MalformedJsonException("Missing hourly humidity");
+        }
+        if (currentIndex == -1) {
+            currentIndex = 36;
+        }
+        return currentIndex < hourlyHumidity.length ? (float) hourlyHumidity[currentIndex] : Float.NaN;
     }
 
     private static String getWeatherDescription(int code) {
@@ -121,6 +121,10 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
         if (conditionResponse == null) {
             return null;
         }
+        WeatherInfo unchanged = getUnchangedWeather(conditionUrl, metric);
+        if (unchanged != null) {
+            return unchanged;
+        }
         log(TAG, "Condition URL = " + conditionUrl + " returning a response of " + conditionResponse);
 
         try {
@@ -149,6 +153,7 @@ public class OpenWeatherMapProvider extends AbstractWeatherProvider {
                     System.currentTimeMillis());
 
             log(TAG, "Weather updated: " + w);
+            putParsedWeather(conditionUrl, metric, w);
             return w;
         } catch (JSONException e) {
             Log.w(TAG, "Received malformed weather data (selection = " + selection
@@ -0,0 +1,196 @@
+/*
+ *  Copyright (C) 2026 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Keeps the recent outcomes of the requests made to each provider and a
+ * circuit breaker per provider. After FAILURE_THRESHOLD failures in a row
+ * the circuit opens and the provider is skipped until the open period has
+ * passed. The next request is a probe - success closes the circuit, failure
+ * opens it again for twice as long.
+ *
+ * The state is kept in its own preferences file so it survives service
+ * restarts.
+ */
+class ProviderHealth {
+    private static final String TAG = "WeatherService:ProviderHealth";
+    private static final boolean DEBUG = false;
+    private static final String PREFS_NAME = "provider_health";
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_BASE_MS = 15 * 60 * 1000;
+    private static final long OPEN_MAX_MS = 60 * 60 * 1000;
+    private static final int MAX_SAMPLES = 20;
+
+    private static final String KEY_FAILURES = "_failures";
+    private static final String KEY_OPEN_UNTIL = "_open_until";
+    private static final String KEY_SAMPLES = "_samples";
+
+    private static ProviderHealth sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    static synchronized ProviderHealth get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ProviderHealth(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ProviderHealth(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Whether a request to the provider is allowed - either the circuit is
+     * closed or the open period is over and a probe may go out.
+     */
+    synchronized boolean isAvailable(String provider) {
+        return System.currentTimeMillis() >= mPrefs.getLong(provider + KEY_OPEN_UNTIL, 0);
+    }
+
+    /**
+     * Returns the provider whose circuit closes first. Used to keep probing
+     * one provider while every circuit is open.
+     */
+    synchronized String getNextProbe(List<String> providers) {
+        String probe = null;
+        long first = Long.MAX_VALUE;
+        for (String provider : providers) {
+            long openUntil = mPrefs.getLong(provider + KEY_OPEN_UNTIL, 0);
+            if (openUntil < first) {
+                first = openUntil;
+                probe = provider;
+            }
+        }
+        return probe;
+    }
+
+    synchronized void recordSuccess(String provider, long latencyMs) {
+        List<long[]> samples = addSample(provider, AbstractWeatherProvider.ERROR_NONE, latencyMs);
+        mPrefs.edit()
+                .putInt(provider + KEY_FAILURES, 0)
+                .putLong(provider + KEY_OPEN_UNTIL, 0)
+                .putString(provider + KEY_SAMPLES, encode(samples))
+                .apply();
+        if (DEBUG) Log.d(TAG, provider + " ok in " + latencyMs + "ms " + describe(samples));
+    }
+
+    synchronized void recordFailure(String provider, int error, long latencyMs) {
+        List<long[]> samples = addSample(provider, error, latencyMs);
+        int failures = mPrefs.getInt(provider + KEY_FAILURES, 0) + 1;
+        SharedPreferences.Editor editor = mPrefs.edit()
+                .putInt(provider + KEY_FAILURES, failures)
+                .putString(provider + KEY_SAMPLES, encode(samples));
+        if (failures >= FAILURE_THRESHOLD) {
+            // double the open period with every failed probe
+            int shift = Math.min(failures - FAILURE_THRESHOLD, 8);
+            long openMs = Math.min(OPEN_BASE_MS << shift, OPEN_MAX_MS);
+            editor.putLong(provider + KEY_OPEN_UNTIL, System.currentTimeMillis() + openMs);
+            Log.w(TAG, "Circuit for provider " + provider + " open for " + openMs / 1000
+                    + "s after " + failures + " failures " + describe(samples));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the given percentile of the latency of successful requests or
+     * -1 if there are none recorded.
+     */
+    synchronized long getLatencyPercentile(String provider, int percentile) {
+        List<long[]> samples = decode(mPrefs.getString(provider + KEY_SAMPLES, null));
+        long[] latencies = new long[samples.size()];
+        int count = 0;
+        for (long[] sample : samples) {
+            if (sample[0] == AbstractWeatherProvider.ERROR_NONE) {
+                latencies[count++] = sample[1];
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(latencies, 0, count);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return latencies[Math.max(0, Math.min(index, count - 1))];
+    }
+
+    private List<long[]> addSample(String provider, int error, long latencyMs) {
+        List<long[]> samples = decode(mPrefs.getString(provider + KEY_SAMPLES, null));
+        samples.add(new long[] { error, latencyMs });
+        while (samples.size() > MAX_SAMPLES) {
+            samples.remove(0);
+        }
+        return samples;
+    }
+
+    private static String describe(List<long[]> samples) {
+        int ok = 0;
+        int[] errors = new int[AbstractWeatherProvider.ERROR_DATA + 1];
+        for (long[] sample : samples) {
+            if (sample[0] == AbstractWeatherProvider.ERROR_NONE) {
+                ok++;
+            } else if (sample[0] < errors.length) {
+                errors[(int) sample[0]]++;
+            }
+        }
+        return "[success " + ok + "/" + samples.size()
+                + " network " + errors[AbstractWeatherProvider.ERROR_NETWORK]
+                + " 4xx " + errors[AbstractWeatherProvider.ERROR_HTTP_CLIENT]
+                + " 5xx " + errors[AbstractWeatherProvider.ERROR_HTTP_SERVER]
+                + " data " + errors[AbstractWeatherProvider.ERROR_DATA] + "]";
+    }
+
+    // samples are stored as "error:latency,error:latency,..."
+    private static String encode(List<long[]> samples) {
+        StringBuilder sb = new StringBuilder();
+        for (long[] sample : samples) {
+            if (sb.length() != 0) {
+                sb.append(',');
+            }
+            sb.append(sample[0]).append(':').append(sample[1]);
+        }
+        return sb.toString();
+    }
+
+    private static List<long[]> decode(String value) {
+        List<long[]> samples = new ArrayList<>();
+        if (TextUtils.isEmpty(value)) {
+            return samples;
+        }
+        for (String part : value.split(",")) {
+            int idx = part.indexOf(':');
+            try {
+                samples.add(new long[] {
+                        Long.parseLong(part.substring(0, idx)),
+                        Long.parseLong(part.substring(idx + 1)) });
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // drop the broken sample
+            }
+        }
+        return samples;
+    }
+}
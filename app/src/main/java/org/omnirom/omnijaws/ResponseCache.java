@@ -0,0 +1,311 @@
+/*
+ *  Copyright (C) 2026 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * On-disk store of provider responses together with their HTTP validators
+ * (ETag, Last-Modified) and expiry so requests can be answered locally or
+ * revalidated with a conditional GET. Bodies are streamed to and from disk
+ * and never held in memory by the cache.
+ */
+class ResponseCache {
+    private static final String TAG = "WeatherService:ResponseCache";
+    private static final boolean DEBUG = false;
+    private static final String DIR_NAME = "responses";
+    private static final int VERSION = 2;
+    private static final int MAX_ENTRIES = 32;
+
+    private static ResponseCache sInstance;
+
+    private final File mDir;
+
+    static class Entry {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long expires;
+        final String charset;
+
+        private Entry(String url, String etag, String lastModified, long expires,
+                String charset) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.charset = charset;
+        }
+
+        boolean isFresh() {
+            return expires > System.currentTimeMillis();
+        }
+    }
+
+    static synchronized ResponseCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ResponseCache(new File(context.getCacheDir(), DIR_NAME));
+        }
+        return sInstance;
+    }
+
+    private ResponseCache(File dir) {
+        mDir = dir;
+    }
+
+    synchronized Entry get(String url) {
+        File file = getFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != VERSION) {
+                file.delete();
+                return null;
+            }
+            // header length - only needed to find the body
+            in.readInt();
+            String storedUrl = in.readUTF();
+            if (!storedUrl.equals(url)) {
+                return null;
+            }
+            String etag = emptyToNull(in.readUTF());
+            String lastModified = emptyToNull(in.readUTF());
+            long expires = in.readLong();
+            String charset = in.readUTF();
+            return new Entry(url, etag, lastModified, expires, charset);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache entry for " + url, e);
+            file.delete();
+        }
+        return null;
+    }
+
+    /**
+     * Opens the stored body of an entry. The caller must close the stream.
+     * The header is read again from the opened file since the entry may have
+     * been replaced by one with a different header in the meantime.
+     */
+    synchronized InputStream openBody(Entry entry) throws IOException {
+        FileInputStream in = new FileInputStream(getFile(entry.url));
+        try {
+            DataInputStream header = new DataInputStream(in);
+            if (header.readInt() != VERSION) {
+                throw new IOException("Unknown cache entry version for " + entry.url);
+            }
+            final int headerLength = header.readInt();
+            long skipped = 0;
+            while (skipped < headerLength) {
+                long n = in.skip(headerLength - skipped);
+                if (n <= 0) {
+                    throw new IOException("Truncated cache entry for " + entry.url);
+                }
+                skipped += n;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BufferedInputStream(in);
+    }
+
+    /**
+     * Whether the body of a 200 response is worth keeping because the server
+     * sent something we can revalidate or reuse later.
+     */
+    static boolean isCacheable(HttpResponse response) {
+        if (isNoStore(response)) {
+            return false;
+        }
+        return getHeader(response, "ETag") != null
+                || getHeader(response, "Last-Modified") != null
+                || getExpires(response) != 0;
+    }
+
+    /**
+     * Streams the body of a cacheable 200 response to disk.
+     */
+    synchronized Entry put(String url, HttpResponse response, String charset,
+            InputStream body) throws IOException {
+        return write(url, getHeader(response, "ETag"), getHeader(response, "Last-Modified"),
+                getExpires(response), charset, body);
+    }
+
+    /**
+     * Refreshes validators and expiry of an entry after a 304 response.
+     */
+    synchronized Entry update(Entry entry, HttpResponse response) throws IOException {
+        String etag = getHeader(response, "ETag");
+        String lastModified = getHeader(response, "Last-Modified");
+        try (InputStream body = openBody(entry)) {
+            return write(entry.url,
+                    etag != null ? etag : entry.etag,
+                    lastModified != null ? lastModified : entry.lastModified,
+                    getExpires(response), entry.charset, body);
+        }
+    }
+
+    synchronized void remove(String url) {
+        getFile(url).delete();
+    }
+
+    private Entry write(String url, String etag, String lastModified, long expires,
+            String charset, InputStream body) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Couldn't create cache dir " + mDir);
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeUTF(url);
+        headerOut.writeUTF(etag != null ? etag : "");
+        headerOut.writeUTF(lastModified != null ? lastModified : "");
+        headerOut.writeLong(expires);
+        headerOut.writeUTF(charset);
+        headerOut.flush();
+
+        File file = getFile(url);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(header.size());
+            header.writeTo(out);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Couldn't store cache entry for " + url);
+        }
+        if (DEBUG) Log.d(TAG, "Cached " + url + " etag=" + etag
+                + " lastModified=" + lastModified + " expires=" + expires);
+        trim();
+        return new Entry(url, etag, lastModified, expires, charset);
+    }
+
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_ENTRIES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length - MAX_ENTRIES; i++) {
+            files[i].delete();
+        }
+    }
+
+    private File getFile(String url) {
+        return new File(mDir, hash(url));
+    }
+
+    private static String hash(String url) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static boolean isNoStore(HttpResponse response) {
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                if ("no-store".equalsIgnoreCase(element.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long getExpires(HttpResponse response) {
+        // max-age takes precedence over Expires
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                if ("no-cache".equalsIgnoreCase(element.getName())) {
+                    return 0;
+                }
+                if ("max-age".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return System.currentTimeMillis()
+                                + Long.parseLong(element.getValue()) * 1000L;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        String expires = getHeader(response, "Expires");
+        if (expires != null) {
+            try {
+                return DateUtils.parseDate(expires).getTime();
+            } catch (DateParseException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? emptyToNull(header.getValue()) : null;
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -30,7 +30,6 @@ import android.location.LocationManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Handler;
 import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
@@ -48,7 +47,7 @@ import org.omnirom.omnijaws.client.OmniJawsClient;
 import java.util.ArrayList;
 import java.util.List;
 
-public class SettingsActivityService extends PreferenceActivity implements OnPreferenceChangeListener, WeatherLocationTask.Callback  {
+public class SettingsActivityService extends PreferenceActivity implements OnPreferenceChangeListener, WeatherLocationTask.Callback, OmniJawsClient.OmniJawsObserver  {
 
     private static final String CHRONUS_ICON_PACK_INTENT = "com.dvtonder.chronus.ICON_PACK";
     private static final String DEFAULT_WEATHER_ICON_PACKAGE = "org.omnirom.omnijaws";
@@ -64,7 +63,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
     private CustomLocationPreference mLocation;
     private ListPreference mWeatherIconPack;
     private Preference mUpdateStatus;
-    private Handler mHandler = new Handler();
+    private OmniJawsClient mWeatherClient;
     protected boolean mShowIconPack;
 
     private static final String PREF_KEY_CUSTOM_LOCATION_CITY = "weather_custom_location_city";
@@ -76,6 +75,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mWeatherClient = new OmniJawsClient(this);
         if (getActionBar() != null) {
             getActionBar().setDisplayHomeAsUpEnabled(true);
         }
@@ -155,6 +155,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
     @Override
     public void onResume() {
         super.onResume();
+        mWeatherClient.addObserver(this);
         // values can be changed from outside
         getPreferenceScreen().removeAll();
         doLoadPreferences();
@@ -164,6 +165,17 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
         }
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        mWeatherClient.removeObserver(this);
+    }
+
+    @Override
+    public void weatherUpdated() {
+        queryLastUpdateTime();
+    }
+
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen,
             Preference preference) {
@@ -182,7 +194,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
             }
             return true;
         } else if (preference == mUpdateStatus) {
-            WeatherService.startUpdate(this);
+            WeatherService.startUpdate(this, true);
             queryLastUpdateTime();
             return true;
         }
@@ -200,7 +212,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
                 // city ids are provider specific - so we need to recheck
                 new WeatherLocationTask(this, Config.getLocationName(this), this).execute();
             } else {
-                WeatherService.startUpdate(this);
+                WeatherService.startUpdate(this, true);
             }
             return true;
         } else if (preference == mUnits) {
@@ -208,7 +220,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
             int idx = mUnits.findIndexOfValue(value);
             mUnits.setSummary(mUnits.getEntries()[idx]);
             mUnits.setValueIndex(idx);
-            WeatherService.startUpdate(this);
+            WeatherService.startUpdate(this, true);
             return true;
         } else if (preference == mUpdateInterval) {
             String value = (String) newValue;
@@ -347,7 +359,7 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
         Config.setLocationName(this, result.city);
         mLocation.setText(result.city);
         mLocation.setSummary(result.city);
-        WeatherService.startUpdate(this);
+        WeatherService.startUpdate(this, true);
     }
 
     private void getAvailableWeatherIconPacks(List<String> entries, List<String> values) {
@@ -401,20 +413,14 @@ public class SettingsActivityService extends PreferenceActivity implements OnPre
                 return null;
             }
         };
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                t.execute();
-            }
-        }, 2000);
+        t.execute();
     }
 
     private String getLastUpdateTime() {
-        OmniJawsClient mWeatherClient = new OmniJawsClient(this);
         if (mWeatherClient.isOmniJawsEnabled()) {
             OmniJawsClient.WeatherInfo mWeatherData = null;
             try {
-                mWeatherClient.queryWeather();
+                // only queries the provider after it notified a change
                 mWeatherData = mWeatherClient.getWeatherInfo();
                 if (mWeatherData != null) {
                     return mWeatherData.getLastUpdateTime();
@@ -0,0 +1,163 @@
+/*
+ *  Copyright (C) 2026 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.util.Calendar;
+import java.util.List;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Picks the time of the next update from the update interval of the
+ * settings and the current weather. Updates come sooner while precipitation
+ * is reported or the temperature moves fast and later in stable conditions,
+ * at night and while the screen is off. The forecast is refreshed shortly
+ * after midnight when the days roll over.
+ */
+class UpdateScheduler {
+    private static final String TAG = "WeatherService:UpdateScheduler";
+    private static final boolean DEBUG = false;
+
+    private static final long INTERVAL_MIN_MS = 30 * 60 * 1000;
+    private static final int INTERVAL_MAX_FACTOR = 4;
+    // after midnight so providers have switched to the new day
+    private static final long MIDNIGHT_OFFSET_MS = 15 * 60 * 1000;
+    private static final int NIGHT_START_HOUR = 0;
+    private static final int NIGHT_END_HOUR = 6;
+
+    // degrees celsius per hour
+    private static final float TREND_FAST = 2f;
+    private static final float TREND_STABLE = 0.5f;
+
+    private UpdateScheduler() {
+    }
+
+    /**
+     * Returns the wall clock time of the next update.
+     *
+     * @param previous the weather before the last update or null
+     * @param current the current weather or null if unknown
+     */
+    static long getNextUpdateTime(Context context, WeatherInfo previous, WeatherInfo current) {
+        final long now = System.currentTimeMillis();
+        final long interval = AlarmManager.INTERVAL_HOUR * Config.getUpdateInterval(context);
+        if (current == null) {
+            return now + interval;
+        }
+
+        float factor = 1f;
+        float trend = getTemperatureTrend(previous, current);
+        if (hasPrecipitation(current)) {
+            factor = 0.5f;
+        } else if (!Float.isNaN(trend)) {
+            // an unknown trend keeps the interval
+            if (Math.abs(trend) >= TREND_FAST) {
+                factor = 0.5f;
+            } else if (Math.abs(trend) < TREND_STABLE) {
+                factor = 1.5f;
+            }
+        }
+
+        Calendar cal = Calendar.getInstance();
+        int hour = cal.get(Calendar.HOUR_OF_DAY);
+        if (hour >= NIGHT_START_HOUR && hour < NIGHT_END_HOUR) {
+            factor *= 2;
+        }
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (!pm.isInteractive()) {
+            // the screen on listener catches up when the user is back
+            factor *= 2;
+        }
+
+        long delay = (long) (interval * factor);
+        delay = Math.max(INTERVAL_MIN_MS, Math.min(delay, interval * INTERVAL_MAX_FACTOR));
+        long due = now + delay;
+
+        // the next rollover refresh - later today if it is not done yet
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        long rollover = cal.getTimeInMillis() + MIDNIGHT_OFFSET_MS;
+        if (rollover <= now) {
+            cal.add(Calendar.DATE, 1);
+            rollover = cal.getTimeInMillis() + MIDNIGHT_OFFSET_MS;
+        }
+        if (rollover < due) {
+            due = rollover;
+        }
+
+        if (DEBUG) Log.d(TAG, "trend " + trend + " factor " + factor
+                + " next update in " + (due - now) / 60000 + "min");
+        return due;
+    }
+
+    /**
+     * Whether updates are overdue because they were stretched while the
+     * screen was off.
+     */
+    static boolean isStale(Context context, WeatherInfo current) {
+        if (current == null) {
+            return true;
+        }
+        final long interval = AlarmManager.INTERVAL_HOUR * Config.getUpdateInterval(context);
+        return System.currentTimeMillis() - current.getTimestamp() > interval;
+    }
+
+    private static boolean hasPrecipitation(WeatherInfo weather) {
+        if (isPrecipitation(weather.getConditionCode())) {
+            return true;
+        }
+        // only today - tomorrow is updated often enough once it is today
+        List<WeatherInfo.DayForecast> forecasts = weather.getForecasts();
+        return !forecasts.isEmpty() && isPrecipitation(forecasts.get(0).getConditionCode());
+    }
+
+    private static boolean isPrecipitation(int conditionCode) {
+        // 0-18 storms, rain, snow, hail and sleet - 35 and 37-47 showers,
+        // thunderstorms and snow except 44 partly cloudy
+        return (conditionCode >= 0 && conditionCode <= 18)
+                || conditionCode == 35
+                || (conditionCode >= 37 && conditionCode <= 47 && conditionCode != 44);
+    }
+
+    /**
+     * Change of the current temperature between two updates in degrees
+     * celsius per hour or NaN if unknown.
+     */
+    private static float getTemperatureTrend(WeatherInfo previous, WeatherInfo current) {
+        if (previous == null || previous.isMetric() != current.isMetric()
+                || Float.isNaN(previous.getTemperature())
+                || Float.isNaN(current.getTemperature())) {
+            return Float.NaN;
+        }
+        long elapsed = current.getTimestamp() - previous.getTimestamp();
+        if (elapsed < 10 * 60 * 1000) {
+            // too close to tell
+            return Float.NaN;
+        }
+        float delta = current.getTemperature() - previous.getTemperature();
+        if (!current.isMetric()) {
+            delta = delta * 5 / 9;
+        }
+        return delta / (elapsed / (float) AlarmManager.INTERVAL_HOUR);
+    }
+}
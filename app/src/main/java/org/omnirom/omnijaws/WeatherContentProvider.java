@@ -20,17 +20,31 @@ import org.omnirom.omnijaws.WeatherInfo.DayForecast;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.content.res.Configuration;
+import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.database.CursorIndexOutOfBoundsException;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Bundle;
+import android.os.Process;
+import android.preference.PreferenceManager;
 import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.List;
 
 public class WeatherContentProvider extends ContentProvider {
     private static final String TAG = "WeatherService:WeatherContentProvider";
     private static final boolean DEBUG = false;
 
-    static WeatherInfo sCachedWeatherInfo;
+    // both are written together under the class lock
+    static volatile WeatherInfo sCachedWeatherInfo;
+    private static volatile WeatherRows sWeatherRows;
 
     private static final int URI_TYPE_WEATHER = 1;
     private static final int URI_TYPE_SETTINGS = 2;
@@ -88,6 +102,14 @@ public class WeatherContentProvider extends ContentProvider {
 
     public static final String AUTHORITY = "org.omnirom.omnijaws.provider";
 
+    /**
+     * call() method returning the enabled state, the units and - if
+     * available - the weather in one Bundle. Keys are the column names,
+     * forecast values are arrays with one entry per day.
+     */
+    public static final String METHOD_GET_WEATHER = "getWeather";
+    private static final String READ_PERMISSION = "org.omnirom.omnijaws.READ_WEATHER";
+
     private static final UriMatcher sUriMatcher;
     static {
         sUriMatcher = new UriMatcher(URI_TYPE_WEATHER);
@@ -95,15 +117,244 @@ public class WeatherContentProvider extends ContentProvider {
         sUriMatcher.addURI(AUTHORITY, "settings", URI_TYPE_SETTINGS);
     }
 
+    private static final Uri SETTINGS_URI = Uri.parse("content://" + AUTHORITY + "/settings");
+
     private Context mContext;
 
+    // clients observe the settings URI for the enabled state and units
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (Config.PREF_KEY_ENABLE.equals(key) || Config.PREF_KEY_UNITS.equals(key)) {
+                mContext.getContentResolver().notifyChange(SETTINGS_URI, null);
+            }
+        }
+    };
+
     @Override
     public boolean onCreate() {
         mContext = getContext();
-        sCachedWeatherInfo = Config.getWeatherData(mContext);
+        setCachedWeatherInfo(mContext, Config.getWeatherData(mContext));
+        PreferenceManager.getDefaultSharedPreferences(mContext)
+                .registerOnSharedPreferenceChangeListener(mSettingsListener);
         return true;
     }
 
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // condition texts are localized
+        synchronized (WeatherContentProvider.class) {
+            setCachedWeatherInfo(mContext, sCachedWeatherInfo);
+        }
+    }
+
+    private static synchronized void setCachedWeatherInfo(Context context, WeatherInfo weather) {
+        sCachedWeatherInfo = weather;
+        sWeatherRows = weather != null ? new WeatherRows(context, weather) : null;
+    }
+
+    /**
+     * The rows of the weather URI in the order of PROJECTION_DEFAULT_WEATHER,
+     * computed once per weather update so queries only map columns.
+     */
+    private static final class WeatherRows {
+        final Object[][] rows;
+        final Bundle bundle;
+        // column indexes for the projections seen so far
+        private final LruCache<List<String>, int[]> mColumnMaps = new LruCache<>(8);
+
+        WeatherRows(Context context, WeatherInfo weather) {
+            List<DayForecast> forecasts = weather.getForecasts();
+            rows = new Object[forecasts.size() + 1][];
+            // current
+            rows[0] = new Object[] {
+                    weather.getId(),
+                    weather.getCity(),
+                    weather.getCondition(),
+                    weather.getTemperature(),
+                    weather.getFormattedHumidity(),
+                    weather.getWindSpeed(),
+                    weather.getWindDirection(),
+                    weather.getTimestamp().toString(),
+                    weather.getPinWheel(),
+                    weather.getConditionCode(),
+                    null, null, null, null, null
+            };
+            // forecast
+            for (int i = 0; i < forecasts.size(); i++) {
+                DayForecast day = forecasts.get(i);
+                rows[i + 1] = new Object[] {
+                        null, null, null, null, null, null, null, null, null, null,
+                        day.getLow(),
+                        day.getHigh(),
+                        day.getCondition(context),
+                        day.getConditionCode(),
+                        day.date
+                };
+            }
+            bundle = toBundle(rows);
+        }
+
+        private static Bundle toBundle(Object[][] rows) {
+            Bundle bundle = new Bundle();
+            Object[] current = rows[0];
+            bundle.putString(COLUMN_CURRENT_CITY_ID, (String) current[0]);
+            bundle.putString(COLUMN_CURRENT_CITY, (String) current[1]);
+            bundle.putString(COLUMN_CURRENT_CONDITION, (String) current[2]);
+            bundle.putFloat(COLUMN_CURRENT_TEMPERATURE, (Float) current[3]);
+            bundle.putString(COLUMN_CURRENT_HUMIDITY, (String) current[4]);
+            bundle.putFloat(COLUMN_CURRENT_WIND_SPEED, (Float) current[5]);
+            bundle.putInt(COLUMN_CURRENT_WIND_DIRECTION, (Integer) current[6]);
+            bundle.putString(COLUMN_CURRENT_TIME_STAMP, (String) current[7]);
+            bundle.putString(COLUMN_CURRENT_PIN_WHEEL, (String) current[8]);
+            bundle.putInt(COLUMN_CURRENT_CONDITION_CODE, (Integer) current[9]);
+
+            int days = rows.length - 1;
+            float[] low = new float[days];
+            float[] high = new float[days];
+            String[] condition = new String[days];
+            int[] conditionCode = new int[days];
+            String[] date = new String[days];
+            for (int i = 0; i < days; i++) {
+                Object[] day = rows[i + 1];
+                low[i] = (Float) day[10];
+                high[i] = (Float) day[11];
+                condition[i] = (String) day[12];
+                conditionCode[i] = (Integer) day[13];
+                date[i] = (String) day[14];
+            }
+            bundle.putFloatArray(COLUMN_FORECAST_LOW, low);
+            bundle.putFloatArray(COLUMN_FORECAST_HIGH, high);
+            bundle.putStringArray(COLUMN_FORECAST_CONDITION, condition);
+            bundle.putIntArray(COLUMN_FORECAST_CONDITION_CODE, conditionCode);
+            bundle.putStringArray(COLUMN_FORECAST_DATE, date);
+            return bundle;
+        }
+
+        int[] getColumnMap(String[] projection) {
+            List<String> key = Arrays.asList(projection);
+            synchronized (mColumnMaps) {
+                int[] map = mColumnMaps.get(key);
+                if (map == null) {
+                    map = new int[projection.length];
+                    List<String> columns = Arrays.asList(PROJECTION_DEFAULT_WEATHER);
+                    for (int i = 0; i < projection.length; i++) {
+                        // unknown columns stay null like in a MatrixCursor
+                        map[i] = columns.indexOf(projection[i]);
+                    }
+                    mColumnMaps.put(key, map);
+                }
+                return map;
+            }
+        }
+    }
+
+    /**
+     * Read-only cursor serving a projection of WeatherRows without copying.
+     * Value conversion follows MatrixCursor.
+     */
+    private static final class RowCursor extends AbstractCursor {
+        private final Object[][] mRows;
+        private final String[] mColumns;
+        private final int[] mColumnMap;
+
+        RowCursor(WeatherRows rows, String[] columns) {
+            mRows = rows.rows;
+            mColumns = columns;
+            mColumnMap = rows.getColumnMap(columns);
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mColumnMap.length) {
+                throw new CursorIndexOutOfBoundsException("Requested column: " + column
+                        + ", # of columns: " + mColumnMap.length);
+            }
+            if (mPos < 0) {
+                throw new CursorIndexOutOfBoundsException("Before first row.");
+            }
+            if (mPos >= mRows.length) {
+                throw new CursorIndexOutOfBoundsException("After last row.");
+            }
+            int index = mColumnMap[column];
+            return index >= 0 ? mRows[mPos][index] : null;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            Object value = get(column);
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).shortValue();
+            return Short.parseShort(value.toString());
+        }
+
+        @Override
+        public int getInt(int column) {
+            Object value = get(column);
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).intValue();
+            return Integer.parseInt(value.toString());
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) return 0;
+            if (value instanceof Number) return ((Number) value).longValue();
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            Object value = get(column);
+            if (value == null) return 0.0f;
+            if (value instanceof Number) return ((Number) value).floatValue();
+            return Float.parseFloat(value.toString());
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) return 0.0d;
+            if (value instanceof Number) return ((Number) value).doubleValue();
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Float || value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof Number) {
+                return FIELD_TYPE_INTEGER;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+
     @Override
     public Cursor query(
             Uri uri,
@@ -113,51 +364,47 @@ public class WeatherContentProvider extends ContentProvider {
             String sortOrder) {
 
         final int projectionType = sUriMatcher.match(uri);
-        final MatrixCursor result = new MatrixCursor(resolveProjection(projection, projectionType));
 
         if (DEBUG) Log.i(TAG, "query: " + uri.toString());
 
         if (projectionType == URI_TYPE_SETTINGS) {
+            final MatrixCursor result = new MatrixCursor(resolveProjection(projection, projectionType));
+            final Config.Settings settings = Config.getSettings(mContext);
             result.newRow()
-                    .add(COLUMN_ENABLED, Config.isEnabled(mContext) ? 1 : 0)
+                    .add(COLUMN_ENABLED, settings.enabled ? 1 : 0)
                     .add(COLUMN_PROVIDER, Config.getProviderId(mContext))
-                    .add(COLUMN_INTERVAL, Config.getUpdateInterval(mContext))
-                    .add(COLUMN_UNITS, Config.isMetric(mContext) ? 0 : 1)
-                    .add(COLUMN_LOCATION, Config.isCustomLocation(mContext) ? Config.getLocationName(mContext) : "")
+                    .add(COLUMN_INTERVAL, settings.updateInterval)
+                    .add(COLUMN_UNITS, settings.metric ? 0 : 1)
+                    .add(COLUMN_LOCATION, settings.customLocation ? settings.locationName : "")
                     .add(COLUMN_SETUP, !Config.isSetupDone(mContext) && sCachedWeatherInfo == null ? 0 : 1);
 
             return result;
         } else if (projectionType == URI_TYPE_WEATHER) {
-            WeatherInfo weather = sCachedWeatherInfo;
-            if (weather != null) {
-                // current
-                result.newRow()
-                        .add(COLUMN_CURRENT_CITY, weather.getCity())
-                        .add(COLUMN_CURRENT_CITY_ID, weather.getId())
-                        .add(COLUMN_CURRENT_CONDITION, weather.getCondition())
-                        .add(COLUMN_CURRENT_HUMIDITY, weather.getFormattedHumidity())
-                        .add(COLUMN_CURRENT_WIND_SPEED, weather.getWindSpeed())
-                        .add(COLUMN_CURRENT_WIND_DIRECTION, weather.getWindDirection())
-                        .add(COLUMN_CURRENT_TEMPERATURE, weather.getTemperature())
-                        .add(COLUMN_CURRENT_TIME_STAMP, weather.getTimestamp().toString())
-                        .add(COLUMN_CURRENT_PIN_WHEEL, weather.getPinWheel())
-                        .add(COLUMN_CURRENT_CONDITION_CODE, weather.getConditionCode());
-
-                // forecast
-                for (DayForecast day : weather.getForecasts()) {
-                    result.newRow()
-                            .add(COLUMN_FORECAST_CONDITION, day.getCondition(mContext))
-                            .add(COLUMN_FORECAST_LOW, day.getLow())
-                            .add(COLUMN_FORECAST_HIGH, day.getHigh())
-                            .add(COLUMN_FORECAST_CONDITION_CODE, day.getConditionCode())
-                            .add(COLUMN_FORECAST_DATE, day.date);
-                }
-                return result;
+            WeatherRows rows = sWeatherRows;
+            if (rows != null) {
+                return new RowCursor(rows, resolveProjection(projection, projectionType));
             }
         }
         return null;
     }
 
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!METHOD_GET_WEATHER.equals(method)) {
+            return null;
+        }
+        // unlike query() call() is not covered by the manifest readPermission
+        if (Binder.getCallingUid() != Process.myUid()) {
+            mContext.enforceCallingPermission(READ_PERMISSION, null);
+        }
+        final Config.Settings settings = Config.getSettings(mContext);
+        final WeatherRows rows = sWeatherRows;
+        final Bundle result = rows != null && settings.enabled ? new Bundle(rows.bundle) : new Bundle();
+        result.putBoolean(COLUMN_ENABLED, settings.enabled);
+        result.putInt(COLUMN_UNITS, settings.metric ? 0 : 1);
+        return result;
+    }
+
     private String[] resolveProjection(String[] projection, int uriType) {
         if (projection != null)
             return projection;
@@ -193,7 +440,7 @@ public class WeatherContentProvider extends ContentProvider {
 
     public static void updateCachedWeatherInfo(Context context) {
         if (DEBUG) Log.d(TAG, "updateCachedWeatherInfo()");
-        sCachedWeatherInfo = Config.getWeatherData(context);
+        setCachedWeatherInfo(context, Config.getWeatherData(context));
         context.getContentResolver().notifyChange(
                 Uri.parse("content://" + WeatherContentProvider.AUTHORITY + "/weather"), null);
     }
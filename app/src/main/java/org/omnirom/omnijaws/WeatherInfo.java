@@ -16,16 +16,33 @@
 
 package org.omnirom.omnijaws;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Locale;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.util.LruCache;
 
 public class WeatherInfo {
     private static final DecimalFormat sNoDigitsFormat = new DecimalFormat("0");
 
+    // condition codes 0 - 47 as used by the providers, -1 is not available
+    private static final int CONDITION_CODE_MAX = 47;
+    private static int[] sConditionResIds;
+    private static final LruCache<Locale, String[]> sConditionStrings = new LruCache<>(2);
+
+    // binary format, see toBytes()
+    private static final int MAGIC = 0x4f4a5749; // "OJWI"
+    private static final short VERSION = 1;
+
     private Context mContext;
 
     private String id;
@@ -70,6 +87,11 @@ public class WeatherInfo {
         this.pinWheel = getFormattedWindDirection(windDir);
     }
 
+    WeatherInfo withTimestamp(long timestamp) {
+        return new WeatherInfo(mContext, id, city, condition, conditionCode, temperature,
+                humidity, wind, windDirection, metric, forecasts, timestamp, pinWheel);
+    }
+
     public static class WeatherLocation {
         public String id;
         public String city;
@@ -147,12 +169,49 @@ public class WeatherInfo {
     }
 
     private static String getCondition(Context context, int conditionCode, String condition) {
+        if (conditionCode < 0 || conditionCode > CONDITION_CODE_MAX) {
+            return condition;
+        }
+        final String text = getConditionStrings(context)[conditionCode];
+        return text != null ? text : condition;
+    }
+
+    /**
+     * Resource ids of the weather_<code> strings, 0 where there is none.
+     * Ids don't change at runtime so they are only looked up once.
+     */
+    private static synchronized int[] getConditionResIds(Context context) {
+        if (sConditionResIds == null) {
+            final Resources res = context.getResources();
+            final String packageName = context.getPackageName();
+            final int[] resIds = new int[CONDITION_CODE_MAX + 1];
+            for (int code = 0; code <= CONDITION_CODE_MAX; code++) {
+                resIds[code] = res.getIdentifier("weather_" + code, "string", packageName);
+            }
+            sConditionResIds = resIds;
+        }
+        return sConditionResIds;
+    }
+
+    /**
+     * The condition texts in the current locale indexed by condition code,
+     * null where there is no localized text.
+     */
+    private static synchronized String[] getConditionStrings(Context context) {
         final Resources res = context.getResources();
-        final int resId = res.getIdentifier("weather_" + conditionCode, "string", context.getPackageName());
-        if (resId != 0) {
-            return res.getString(resId);
+        final Locale locale = res.getConfiguration().getLocales().get(0);
+        String[] strings = sConditionStrings.get(locale);
+        if (strings == null) {
+            final int[] resIds = getConditionResIds(context);
+            strings = new String[resIds.length];
+            for (int code = 0; code < resIds.length; code++) {
+                if (resIds[code] != 0) {
+                    strings[code] = res.getString(resIds[code]);
+                }
+            }
+            sConditionStrings.put(locale, strings);
         }
-        return condition;
+        return strings;
     }
 
     public Long getTimestamp() {
@@ -214,6 +273,10 @@ public class WeatherInfo {
         return temperature;
     }
 
+    public boolean isMetric() {
+        return metric;
+    }
+
     private String getTemperatureUnit() {
         return "\u00b0" + (metric ? "C" : "F");
     }
@@ -257,35 +320,124 @@ public class WeatherInfo {
         return builder.toString();
     }
 
-    public String toSerializedString() {
-        StringBuilder builder = new StringBuilder();
-        builder.append(id).append('|');
-        builder.append(city).append('|');
-        builder.append(condition).append('|');
-        builder.append(conditionCode).append('|');
-        builder.append(temperature).append('|');
-        builder.append(humidity).append('|');
-        builder.append(wind).append('|');
-        builder.append(windDirection).append('|');
-        builder.append(metric).append('|');
-        builder.append(timestamp).append('|');
-        builder.append(pinWheel).append('|');
-        serializeForecasts(builder);
-        return builder.toString();
+    /**
+     * Encodes this info in the compact binary format:
+     * magic, version, the fields as primitives, then the forecasts.
+     * Strings are stored as length prefixed UTF-8, -1 for null.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            writeString(out, id);
+            writeString(out, city);
+            writeString(out, condition);
+            out.writeInt(conditionCode);
+            out.writeFloat(temperature);
+            out.writeFloat(humidity);
+            out.writeFloat(wind);
+            out.writeInt(windDirection);
+            out.writeBoolean(metric);
+            out.writeLong(timestamp);
+            writeString(out, pinWheel);
+            out.writeInt(forecasts.size());
+            for (DayForecast d : forecasts) {
+                out.writeFloat(d.high);
+                out.writeFloat(d.low);
+                writeString(out, d.condition);
+                out.writeInt(d.conditionCode);
+                writeString(out, d.date);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
     }
 
-    private void serializeForecasts(StringBuilder builder) {
-        builder.append(forecasts.size());
-        for (DayForecast d : forecasts) {
-            builder.append(';');
-            builder.append(d.high).append(';');
-            builder.append(d.low).append(';');
-            builder.append(d.condition).append(';');
-            builder.append(d.conditionCode).append(';');
-            builder.append(d.date);
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static WeatherInfo fromBytes(Context context, byte[] input) {
+        if (input == null) {
+            return null;
+        }
+        return fromBytes(context, ByteBuffer.wrap(input));
+    }
+
+    /**
+     * Decodes an info written by toBytes() starting at the buffer's
+     * position. Returns null if the data is not in a known format.
+     */
+    public static WeatherInfo fromBytes(Context context, ByteBuffer in) {
+        try {
+            if (in.getInt() != MAGIC || in.getShort() != VERSION) {
+                return null;
+            }
+            String id = readString(in);
+            String city = readString(in);
+            String condition = readString(in);
+            int conditionCode = in.getInt();
+            float temperature = in.getFloat();
+            float humidity = in.getFloat();
+            float wind = in.getFloat();
+            int windDirection = in.getInt();
+            boolean metric = in.get() != 0;
+            long timestamp = in.getLong();
+            String pinWheel = readString(in);
+            int forecastItems = in.getInt();
+            if (forecastItems < 0 || forecastItems > in.remaining()) {
+                return null;
+            }
+            ArrayList<DayForecast> forecasts = new ArrayList<DayForecast>(forecastItems);
+            for (int item = 0; item < forecastItems; item++) {
+                float high = in.getFloat();
+                float low = in.getFloat();
+                DayForecast day = new DayForecast(low, high,
+                        /* condition */ readString(in),
+                        /* conditionCode */ in.getInt(),
+                        /* date */ readString(in),
+                        metric);
+                if (!Float.isNaN(day.low) && !Float.isNaN(day.high)) {
+                    forecasts.add(day);
+                }
+            }
+            if (forecasts.isEmpty()) {
+                return null;
+            }
+            return new WeatherInfo(context, id, city, condition, conditionCode, temperature,
+                    humidity, wind, windDirection, metric, forecasts, timestamp, pinWheel);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
         }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Legacy text format, only kept to migrate data stored by older versions.
+     */
     public static WeatherInfo fromSerializedString(Context context, String input) {
         if (input == null) {
             return null;
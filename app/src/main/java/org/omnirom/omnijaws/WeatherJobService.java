@@ -0,0 +1,222 @@
+/*
+ *  Copyright (C) 2026 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Runs the scheduled updates and retries of WeatherService as jobs so they
+ * wait for a network, are batched with other jobs and don't wake the
+ * device on their own.
+ *
+ * A scheduled update is posted twice - on an unmetered network at the due
+ * time and on any network a bit later. Whichever runs first cancels the
+ * other.
+ *
+ * A job lasts until WeatherService is done with the update it started so
+ * the fetch happens under the wake lock and network of the job. Scheduling
+ * or cancelling a running job would stop it, so changes to a running job
+ * are held back until it is finished.
+ */
+public class WeatherJobService extends JobService {
+    private static final String TAG = "WeatherService:WeatherJobService";
+    private static final boolean DEBUG = false;
+
+    private static final int JOB_UPDATE = 1;
+    private static final int JOB_UPDATE_ANY_NETWORK = 2;
+    private static final int JOB_RETRY = 3;
+    private static final int JOB_CONNECTIVITY = 4;
+
+    private static final long ANY_NETWORK_DELAY_MS = 15 * 60 * 1000;
+    private static final String EXTRA_ATTEMPT = "attempt";
+
+    // jobs waiting for WeatherService to finish - guarded by the class
+    private static final Map<JobParameters, WeatherJobService> sRunningJobs = new HashMap<>();
+    // held back changes of running jobs, null means cancel - guarded by the class
+    private static final SparseArray<JobInfo> sDeferred = new SparseArray<>();
+
+    /**
+     * Schedules the next regular update at the given wall clock time.
+     */
+    static void scheduleUpdate(Context context, long due) {
+        long delay = Math.max(0, due - System.currentTimeMillis());
+        if (DEBUG) Log.d(TAG, "Scheduling next update in " + delay / 1000 + "s");
+        schedule(context, newJob(context, JOB_UPDATE, JobInfo.NETWORK_TYPE_UNMETERED)
+                .setMinimumLatency(delay)
+                .build());
+        schedule(context, newJob(context, JOB_UPDATE_ANY_NETWORK, JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delay + ANY_NETWORK_DELAY_MS)
+                .build());
+    }
+
+    static void scheduleRetry(Context context, int attempt, long delay) {
+        Log.w(TAG, "retry " + attempt + " in " + delay + "ms");
+        PersistableBundle extras = new PersistableBundle();
+        extras.putInt(EXTRA_ATTEMPT, attempt);
+        schedule(context, newJob(context, JOB_RETRY, JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delay)
+                .setExtras(extras)
+                .build());
+    }
+
+    /**
+     * Updates as soon as a network is available again.
+     */
+    static void scheduleOnConnectivity(Context context) {
+        if (DEBUG) Log.d(TAG, "Waiting for connectivity");
+        schedule(context, newJob(context, JOB_CONNECTIVITY, JobInfo.NETWORK_TYPE_ANY).build());
+    }
+
+    static void cancelUpdate(Context context) {
+        cancel(context, JOB_UPDATE);
+        cancel(context, JOB_UPDATE_ANY_NETWORK);
+        cancel(context, JOB_CONNECTIVITY);
+        cancelRetry(context);
+    }
+
+    static void cancelRetry(Context context) {
+        cancel(context, JOB_RETRY);
+    }
+
+    private static void schedule(Context context, JobInfo job) {
+        synchronized (WeatherJobService.class) {
+            if (isRunning(job.getId())) {
+                if (DEBUG) Log.d(TAG, "Deferring schedule of running job " + job.getId());
+                sDeferred.put(job.getId(), job);
+                return;
+            }
+        }
+        getJobScheduler(context).schedule(job);
+    }
+
+    private static void cancel(Context context, int jobId) {
+        synchronized (WeatherJobService.class) {
+            if (isRunning(jobId)) {
+                if (DEBUG) Log.d(TAG, "Deferring cancel of running job " + jobId);
+                sDeferred.put(jobId, null);
+                return;
+            }
+        }
+        getJobScheduler(context).cancel(jobId);
+    }
+
+    private static boolean isRunning(int jobId) {
+        for (JobParameters params : sRunningJobs.keySet()) {
+            if (params.getJobId() == jobId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by WeatherService when it has no update running anymore.
+     * Retries are scheduled by WeatherService itself so jobs are never
+     * rescheduled.
+     */
+    static void finishJobs(Context context) {
+        synchronized (WeatherJobService.class) {
+            for (Map.Entry<JobParameters, WeatherJobService> entry : sRunningJobs.entrySet()) {
+                if (DEBUG) Log.d(TAG, "jobFinished " + entry.getKey().getJobId());
+                entry.getValue().jobFinished(entry.getKey(), false);
+            }
+            sRunningJobs.clear();
+            applyDeferred(context);
+        }
+    }
+
+    private static void applyDeferred(Context context) {
+        JobScheduler js = getJobScheduler(context);
+        for (int i = 0; i < sDeferred.size(); i++) {
+            JobInfo job = sDeferred.valueAt(i);
+            if (job != null) {
+                js.schedule(job);
+            } else {
+                js.cancel(sDeferred.keyAt(i));
+            }
+        }
+        sDeferred.clear();
+    }
+
+    private static JobInfo.Builder newJob(Context context, int jobId, int networkType) {
+        JobInfo.Builder builder = new JobInfo.Builder(jobId,
+                new ComponentName(context, WeatherJobService.class))
+                .setRequiredNetworkType(networkType);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setRequiresBatteryNotLow(true);
+        }
+        return builder;
+    }
+
+    private static JobScheduler getJobScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (DEBUG) Log.d(TAG, "onStartJob " + params.getJobId());
+        synchronized (WeatherJobService.class) {
+            sRunningJobs.put(params, this);
+        }
+        switch (params.getJobId()) {
+            case JOB_UPDATE:
+            case JOB_UPDATE_ANY_NETWORK:
+                cancel(this, params.getJobId() == JOB_UPDATE
+                        ? JOB_UPDATE_ANY_NETWORK : JOB_UPDATE);
+                WeatherService.startScheduledUpdate(this);
+                break;
+            case JOB_RETRY:
+                WeatherService.startRetry(this, params.getExtras().getInt(EXTRA_ATTEMPT));
+                break;
+            case JOB_CONNECTIVITY:
+                if (Config.isUpdateError(this)) {
+                    WeatherService.startUpdate(this, true);
+                } else {
+                    synchronized (WeatherJobService.class) {
+                        sRunningJobs.remove(params);
+                    }
+                    return false;
+                }
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        synchronized (WeatherJobService.class) {
+            sRunningJobs.remove(params);
+            if (sRunningJobs.isEmpty()) {
+                applyDeferred(this);
+            }
+        }
+        return false;
+    }
+}
@@ -17,7 +17,19 @@
  */
 package org.omnirom.omnijaws;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import android.Manifest;
 import android.app.AlarmManager;
@@ -37,6 +49,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
@@ -46,12 +59,15 @@ public class WeatherService extends Service {
     private static final boolean DEBUG = false;
     private static final String ACTION_UPDATE = "org.omnirom.omnijaws.ACTION_UPDATE";
     private static final String ACTION_ALARM = "org.omnirom.omnijaws.ACTION_ALARM";
+    private static final String ACTION_RETRY = "org.omnirom.omnijaws.ACTION_RETRY";
     private static final String ACTION_ENABLE = "org.omnirom.omnijaws.ACTION_ENABLE";
     private static final String ACTION_BROADCAST = "org.omnirom.omnijaws.WEATHER_UPDATE";
     private static final String ACTION_ERROR = "org.omnirom.omnijaws.WEATHER_ERROR";
 
     private static final String EXTRA_ENABLE = "enable";
     private static final String EXTRA_ERROR = "error";
+    private static final String EXTRA_ATTEMPT = "attempt";
+    private static final String EXTRA_FORCE = "force";
 
     private static final int EXTRA_ERROR_NETWORK = 0;
     private static final int EXTRA_ERROR_LOCATION = 1;
@@ -64,14 +80,24 @@ public class WeatherService extends Service {
     public static final long LOCATION_REQUEST_TIMEOUT = 5L * 60L * 1000L; // request for at most 5 minutes
     private static final long OUTDATED_LOCATION_THRESHOLD_MILLIS = 10L * 60L * 1000L; // 10 minutes
     private static final long ALARM_INTERVAL_BASE = AlarmManager.INTERVAL_HOUR;
-    private static final int RETRY_DELAY_MS = 5000;
+    private static final long RETRY_DELAY_MS = 5000;
+    private static final long RETRY_DELAY_MAX_MS = 10L * 60L * 1000L;
     private static final int RETRY_MAX_NUM = 5;
+    // latency budget after which a hedged request goes to the next provider
+    private static final long HEDGE_DELAY_MS = 4000;
+    private static final long HEDGE_DELAY_MIN_MS = 2000;
+    private static final long HEDGE_DELAY_MAX_MS = 8000;
 
     private HandlerThread mHandlerThread;
     private Handler mHandler;
     private PowerManager.WakeLock mWakeLock;
+    // single flight state of the refresh - guarded by mLock
+    private final Object mLock = new Object();
     private boolean mRunning;
-    private static PendingIntent mAlarm;
+    private String mRunningKey;
+    private boolean mFollowUp;
+    private ExecutorService mExecutor;
+    private static final Random sRandom = new Random();
 
     private static final Criteria sLocationCriteria;
     static {
@@ -88,6 +114,11 @@ public class WeatherService extends Service {
             if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
                 if (Config.isEnabled(context) && Config.isUpdateError(context)) {
                     Log.i(TAG, "screenStateListener trigger update after update error");
+                    WeatherService.startUpdate(context, true);
+                } else if (Config.isEnabled(context)
+                        && UpdateScheduler.isStale(context, WeatherContentProvider.sCachedWeatherInfo)) {
+                    // updates are stretched while the screen is off
+                    Log.i(TAG, "screenStateListener trigger update of outdated weather");
                     WeatherService.startUpdate(context);
                 }
             }
@@ -109,14 +140,28 @@ public class WeatherService extends Service {
         mHandlerThread = new HandlerThread("WeatherService Thread");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
+        mExecutor = Executors.newCachedThreadPool();
         PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
         mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
         mWakeLock.setReferenceCounted(true);
         registerScreenStateListener();
+        // alarms survive an upgrade from the versions that used them
+        cancelLegacyAlarms(this);
     }
 
     public static void startUpdate(Context context) {
-        start(context, ACTION_UPDATE);
+        startUpdate(context, false);
+    }
+
+    /**
+     * Requests an update. Unless forced the request is answered from the
+     * cached weather while it is still fresh.
+     */
+    public static void startUpdate(Context context, boolean force) {
+        Intent i = new Intent(context, WeatherService.class);
+        i.setAction(ACTION_UPDATE);
+        i.putExtra(EXTRA_FORCE, force);
+        context.startService(i);
     }
 
     private static void start(Context context, String action) {
@@ -132,26 +177,27 @@ public class WeatherService extends Service {
         context.startService(i);
     }
 
-    private static PendingIntent alarmPending(Context context) {
-        Intent intent = new Intent(context, WeatherService.class);
-        intent.setAction(ACTION_ALARM);
-        return PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    static void startScheduledUpdate(Context context) {
+        start(context, ACTION_ALARM);
+    }
+
+    static void startRetry(Context context, int attempt) {
+        Intent i = new Intent(context, WeatherService.class);
+        i.setAction(ACTION_RETRY);
+        i.putExtra(EXTRA_ATTEMPT, attempt);
+        context.startService(i);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Config.setUpdateError(this, false);
+        final Config.Batch batch = Config.edit(this);
         if (intent == null) {
             Log.w(TAG, "intent == null");
+            batch.apply();
             stopSelf();
             return START_NOT_STICKY;
         }
 
-        if (mRunning) {
-            Log.w(TAG, "Service running ... do nothing");
-            return START_STICKY;
-        }
-
         mWakeLock.acquire();
         try {
             if (ACTION_ENABLE.equals(intent.getAction())) {
@@ -172,13 +218,31 @@ public class WeatherService extends Service {
                 return START_NOT_STICKY;
             }
 
+            if (ACTION_ALARM.equals(intent.getAction())) {
+                // keeps the schedule going if this update fails - a successful
+                // one replaces it with the adaptive schedule
+                WeatherJobService.scheduleUpdate(this, System.currentTimeMillis()
+                        + ALARM_INTERVAL_BASE * Config.getUpdateInterval(this));
+            }
+
             if (ACTION_CANCEL_LOCATION_UPDATE.equals(intent.getAction())) {
                 Log.w(TAG, "Service started, but location timeout ... stopping");
                 WeatherLocationListener.cancel(this);
                 Intent errorIntent = new Intent(ACTION_ERROR);
                 errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_LOCATION);
                 sendBroadcast(errorIntent);
-                Config.setUpdateError(this, true);
+                batch.setUpdateError(true);
+                return START_STICKY;
+            }
+
+            if (joinRunningUpdate()) {
+                return START_STICKY;
+            }
+
+            if (ACTION_UPDATE.equals(intent.getAction())
+                    && !intent.getBooleanExtra(EXTRA_FORCE, false) && isWeatherFresh()) {
+                if (DEBUG) Log.d(TAG, "Weather is fresh ... answer from cache");
+                sendBroadcast(new Intent(ACTION_BROADCAST));
                 return START_STICKY;
             }
 
@@ -187,17 +251,28 @@ public class WeatherService extends Service {
                 Intent errorIntent = new Intent(ACTION_ERROR);
                 errorIntent.putExtra(EXTRA_ERROR, EXTRA_ERROR_NETWORK);
                 sendBroadcast(errorIntent);
-                Config.setUpdateError(this, true);
+                batch.setUpdateError(true);
+                // update once the network is back
+                WeatherJobService.scheduleOnConnectivity(this);
                 return START_STICKY;
             }
 
             if (ACTION_ALARM.equals(intent.getAction())) {
-                Config.setLastAlarmTime(this);
+                batch.setLastAlarmTime();
             }
+            // must be written before the update can report its own state
+            batch.apply();
             if (DEBUG) Log.d(TAG, "updateWeather");
-            updateWeather();
+            synchronized (mLock) {
+                mRunning = true;
+                mRunningKey = getRequestKey();
+            }
+            updateWeather(ACTION_RETRY.equals(intent.getAction())
+                    ? intent.getIntExtra(EXTRA_ATTEMPT, 0) : 0);
         } finally {
+            batch.apply();
             mWakeLock.release();
+            finishJobsIfIdle();
         }
 
         return START_STICKY;
@@ -208,6 +283,7 @@ public class WeatherService extends Service {
         super.onDestroy();
         if (DEBUG) Log.d(TAG, "onDestroy");
         unregisterScreenStateListener();
+        mExecutor.shutdownNow();
     }
 
     private boolean isNetworkAvailable() {
@@ -258,96 +334,359 @@ public class WeatherService extends Service {
     public static void scheduleUpdate(Context context) {
         cancelUpdate(context);
 
-        final long interval = ALARM_INTERVAL_BASE * Config.getUpdateInterval(context);
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        final long due = System.currentTimeMillis() + interval;
+        WeatherJobService.scheduleUpdate(context, UpdateScheduler.getNextUpdateTime(context,
+                null, WeatherContentProvider.sCachedWeatherInfo));
         Config.setLastAlarmTime(context);
+        startUpdate(context, true);
+    }
+
+    public static void cancelUpdate(Context context) {
+        if (DEBUG) Log.d(TAG, "Cancel pending update");
+        WeatherJobService.cancelUpdate(context);
+        cancelLegacyAlarms(context);
+    }
 
-        if (DEBUG) Log.d(TAG, "Scheduling next update at " + new Date(due));
+    /**
+     * Cancels the update and retry alarms of older versions that now run
+     * as jobs.
+     */
+    private static void cancelLegacyAlarms(Context context) {
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent alarm = PendingIntent.getService(context, 0,
+                new Intent(context, WeatherService.class).setAction(ACTION_ALARM),
+                PendingIntent.FLAG_NO_CREATE);
+        if (alarm != null) {
+            am.cancel(alarm);
+            alarm.cancel();
+        }
+        PendingIntent retry = PendingIntent.getService(context, 1,
+                new Intent(context, WeatherService.class).setAction(ACTION_RETRY),
+                PendingIntent.FLAG_NO_CREATE);
+        if (retry != null) {
+            am.cancel(retry);
+            retry.cancel();
+        }
+    }
 
-        mAlarm = alarmPending(context);
-        am.setInexactRepeating(AlarmManager.RTC, due, interval, mAlarm);
-        startUpdate(context);
+    /**
+     * Whether a refresh is running that this request joins. Everybody waiting
+     * for weather gets the result of the running refresh through the update
+     * broadcast. Only a request made after settings that affect the result
+     * changed causes one more refresh once the running one is done.
+     */
+    private boolean joinRunningUpdate() {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return false;
+            }
+            if (!getRequestKey().equals(mRunningKey)) {
+                mFollowUp = true;
+            }
+            if (DEBUG) Log.d(TAG, "Joining running update followUp=" + mFollowUp);
+            return true;
+        }
     }
 
-    public static void cancelUpdate(Context context) {
-        if (mAlarm != null) {
-            AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-            if (DEBUG) Log.d(TAG, "Cancel pending update");
+    /**
+     * Whether the cached weather is recent enough to answer a request
+     * that is not forced.
+     */
+    private boolean isWeatherFresh() {
+        WeatherInfo weather = WeatherContentProvider.sCachedWeatherInfo;
+        if (weather == null || Config.isUpdateError(this)) {
+            return false;
+        }
+        long maxAge = getResources().getInteger(R.integer.update_max_age_minutes) * 60 * 1000L;
+        long age = System.currentTimeMillis() - weather.getTimestamp();
+        return age >= 0 && age < maxAge;
+    }
 
-            am.cancel(mAlarm);
-            mAlarm = null;
+    // a job that started a request which didn't lead to a refresh is done
+    private void finishJobsIfIdle() {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
         }
+        WeatherJobService.finishJobs(this);
+    }
+
+    // the settings a refresh depends on
+    private String getRequestKey() {
+        return Config.getProviderChain(this) + ":" + Config.isMetric(this)
+                + ":" + Config.isCustomLocation(this) + ":" + Config.getLocationId(this);
     }
 
-    private void updateWeather() {
+    private void updateWeather(final int attempt) {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
                 WeatherInfo w = null;
+                final WeatherInfo previous = WeatherContentProvider.sCachedWeatherInfo;
+                long retryDelay = -1;
+                // all preference changes of this refresh are written at once
+                final Config.Batch batch = Config.edit(WeatherService.this);
                 try {
-                    mRunning = true;
                     mWakeLock.acquire();
-                    AbstractWeatherProvider provider = Config.getProvider(WeatherService.this);
-                    int i = 0;
-                    // retry max 3 times
-                    while(i < RETRY_MAX_NUM) {
-                        if (!Config.isCustomLocation(WeatherService.this)) {
-                            if (checkPermissions()) {
-                                Location location = getCurrentLocation();
-                                if (location != null) {
-                                    w = provider.getLocationWeather(location, Config.isMetric(WeatherService.this));
-                                } else {
-                                    Log.w(TAG, "no location");
-                                    // we are outa here
-                                    break;
-                                }
-                            } else {
-                                Log.w(TAG, "no location permissions");
+                    // a new update supersedes any pending retry - a retry
+                    // is the pending one itself
+                    if (attempt == 0) {
+                        WeatherJobService.cancelRetry(WeatherService.this);
+                    }
+                    final boolean metric = Config.isMetric(WeatherService.this);
+                    final List<String> providers = Config.getProviderChain(WeatherService.this);
+                    Location location = null;
+                    String locationId = null;
+                    if (!Config.isCustomLocation(WeatherService.this)) {
+                        if (checkPermissions()) {
+                            location = getCurrentLocation();
+                            if (location == null) {
+                                Log.w(TAG, "no location");
                                 // we are outa here
-                                break;
+                                return;
                             }
-                        } else if (Config.getLocationId(WeatherService.this) != null){
-                            w = provider.getCustomWeather(Config.getLocationId(WeatherService.this), Config.isMetric(WeatherService.this));
                         } else {
-                            Log.w(TAG, "no valid custom location");
+                            Log.w(TAG, "no location permissions");
                             // we are outa here
-                            break;
+                            return;
                         }
-                        if (w != null) {
-                            Config.setWeatherData(WeatherService.this, w);
-                            WeatherContentProvider.updateCachedWeatherInfo(WeatherService.this);
+                    } else {
+                        locationId = Config.getLocationId(WeatherService.this);
+                        if (locationId == null) {
+                            Log.w(TAG, "no valid custom location");
                             // we are outa here
-                            break;
-                        } else {
-                            if (!provider.shouldRetry()) {
-                                // some other error
-                                break;
-                            } else {
-                                Log.w(TAG, "retry count =" + i);
-                                try {
-                                    Thread.sleep(RETRY_DELAY_MS);
-                                } catch (InterruptedException e) {
-                                }
-                            }
+                            return;
                         }
-                        i++;
+                    }
+                    List<ProviderRequest> requests = new ArrayList<>(providers.size());
+                    for (String providerId : providers) {
+                        if (!ProviderHealth.get(WeatherService.this).isAvailable(providerId)) {
+                            Log.w(TAG, "skipping provider " + providerId + " - circuit open");
+                            continue;
+                        }
+                        requests.add(new ProviderRequest(providerId, location, locationId, metric));
+                    }
+                    if (requests.isEmpty() && !providers.isEmpty()) {
+                        // never give up completely - probe the provider that is due first
+                        String providerId = ProviderHealth.get(WeatherService.this).getNextProbe(providers);
+                        Log.w(TAG, "all circuits open - probing provider " + providerId);
+                        requests.add(new ProviderRequest(providerId, location, locationId, metric));
+                    }
+                    ProviderRequest winner = Config.isProviderHedging(WeatherService.this)
+                            ? requestHedged(requests) : requestInOrder(requests);
+                    if (winner != null) {
+                        w = winner.result;
+                        batch.setWeatherData(w, winner.providerId);
+                        recordNetworkFailures(requests, winner);
+                    } else if (attempt + 1 < RETRY_MAX_NUM) {
+                        retryDelay = getRetryDelay(WeatherService.this, requests, attempt);
                     }
                 } finally {
-                    if (w == null) {
-                        // error
-                        Config.setUpdateError(WeatherService.this, true);
+                    // error if w == null
+                    batch.setUpdateError(w == null).apply();
+                    if (w != null) {
+                        WeatherContentProvider.updateCachedWeatherInfo(WeatherService.this);
+                        // every update plans the next one as the interval depends on the weather
+                        WeatherJobService.scheduleUpdate(WeatherService.this,
+                                UpdateScheduler.getNextUpdateTime(WeatherService.this, previous, w));
+                    }
+                    if (retryDelay >= 0) {
+                        WeatherJobService.scheduleRetry(WeatherService.this, attempt + 1, retryDelay);
+                    }
+                    // requests that come after this can't join anymore as the
+                    // broadcast below may already be out when they are handled
+                    boolean followUp;
+                    synchronized (mLock) {
+                        followUp = mFollowUp;
+                        mFollowUp = false;
+                        if (followUp) {
+                            mRunningKey = getRequestKey();
+                        } else {
+                            mRunning = false;
+                        }
                     }
                     // send broadcast that something has changed
                     Intent updateIntent = new Intent(ACTION_BROADCAST);
                     sendBroadcast(updateIntent);
                     mWakeLock.release();
-                    mRunning = false;
+                    if (followUp) {
+                        updateWeather(0);
+                    } else {
+                        WeatherJobService.finishJobs(WeatherService.this);
+                    }
                 }
             }
          });
     }
 
+    /**
+     * Returns the delay before the next attempt or -1 if none of the failed
+     * providers is worth retrying. The delay grows exponentially with the
+     * attempt and is randomized between half and the full value so clients
+     * don't retry in lockstep. A Retry-After sent by the server is honoured
+     * unless it reaches past the regular update interval.
+     */
+    private static long getRetryDelay(Context context, List<ProviderRequest> requests,
+            int attempt) {
+        boolean shouldRetry = false;
+        long retryAfter = 0;
+        for (ProviderRequest request : requests) {
+            AbstractWeatherProvider provider = request.provider;
+            int error = provider.getLastError();
+            if (provider.shouldRetry() || provider.getRetryAfter() > 0
+                    || error == AbstractWeatherProvider.ERROR_NETWORK
+                    || error == AbstractWeatherProvider.ERROR_HTTP_SERVER) {
+                shouldRetry = true;
+                retryAfter = Math.max(retryAfter, provider.getRetryAfter());
+            }
+        }
+        if (!shouldRetry || retryAfter > ALARM_INTERVAL_BASE * Config.getUpdateInterval(context)) {
+            // leave it to the next regular update
+            return -1;
+        }
+        long delay = Math.min(RETRY_DELAY_MS << attempt, RETRY_DELAY_MAX_MS);
+        delay = delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Network errors only count against a provider when another provider
+     * could be reached in the same round - otherwise it is the device that
+     * has no usable network.
+     */
+    private void recordNetworkFailures(List<ProviderRequest> requests, ProviderRequest winner) {
+        ProviderHealth health = ProviderHealth.get(this);
+        for (ProviderRequest request : requests) {
+            if (request != winner && request.result == null && !request.provider.isCancelled()
+                    && request.provider.getLastError() == AbstractWeatherProvider.ERROR_NETWORK) {
+                health.recordFailure(request.providerId, AbstractWeatherProvider.ERROR_NETWORK,
+                        request.latency);
+            }
+        }
+    }
+
+    /**
+     * One weather request against one provider of the chain.
+     */
+    private class ProviderRequest implements Callable<WeatherInfo> {
+        final String providerId;
+        final AbstractWeatherProvider provider;
+        final Location location;
+        final String locationId;
+        final boolean metric;
+        volatile WeatherInfo result;
+        volatile long latency;
+
+        ProviderRequest(String providerId, Location location, String locationId, boolean metric) {
+            this.providerId = providerId;
+            this.provider = Config.createProvider(WeatherService.this, providerId);
+            this.location = location;
+            this.locationId = locationId;
+            this.metric = metric;
+        }
+
+        @Override
+        public WeatherInfo call() {
+            final long start = SystemClock.elapsedRealtime();
+            if (location != null) {
+                result = provider.getLocationWeather(location, metric);
+            } else {
+                result = provider.getCustomWeather(locationId, metric);
+            }
+            latency = SystemClock.elapsedRealtime() - start;
+            ProviderHealth health = ProviderHealth.get(WeatherService.this);
+            int error = provider.getLastError();
+            if (result != null) {
+                health.recordSuccess(providerId, latency);
+            } else if (!provider.isCancelled() && error != AbstractWeatherProvider.ERROR_NETWORK) {
+                // a hedged request that lost is not the provider's fault and
+                // network errors are judged once the round is over
+                health.recordFailure(providerId,
+                        error != AbstractWeatherProvider.ERROR_NONE ? error : AbstractWeatherProvider.ERROR_DATA,
+                        latency);
+            }
+            return result;
+        }
+    }
+
+    private ProviderRequest requestInOrder(List<ProviderRequest> requests) {
+        // a failing provider is skipped right away in favour of the next one
+        for (ProviderRequest request : requests) {
+            if (request.call() != null) {
+                return request;
+            }
+            Log.w(TAG, "provider " + request.providerId + " failed");
+        }
+        return null;
+    }
+
+    /**
+     * Starts with the first provider and sends the same request to the next
+     * one whenever the running ones fail or have not answered within the
+     * latency budget. The first valid result wins, the others are cancelled.
+     */
+    private ProviderRequest requestHedged(List<ProviderRequest> requests) {
+        CompletionService<WeatherInfo> completion = new ExecutorCompletionService<>(mExecutor);
+        Map<Future<WeatherInfo>, ProviderRequest> pending = new HashMap<>();
+        ProviderRequest winner = null;
+        int next = 0;
+        try {
+            while (winner == null && (next < requests.size() || !pending.isEmpty())) {
+                if (pending.isEmpty()) {
+                    ProviderRequest request = requests.get(next++);
+                    pending.put(completion.submit(request), request);
+                    continue;
+                }
+                final long budget = next < requests.size()
+                        ? getHedgeDelay(requests.get(next - 1).providerId) : 0;
+                Future<WeatherInfo> done = next < requests.size()
+                        ? completion.poll(budget, TimeUnit.MILLISECONDS)
+                        : completion.take();
+                if (done == null) {
+                    ProviderRequest request = requests.get(next++);
+                    Log.w(TAG, "no answer within " + budget + "ms - also asking provider " + request.providerId);
+                    pending.put(completion.submit(request), request);
+                    continue;
+                }
+                ProviderRequest request = pending.remove(done);
+                try {
+                    if (done.get() != null) {
+                        winner = request;
+                        break;
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "provider " + request.providerId + " crashed", e.getCause());
+                }
+                Log.w(TAG, "provider " + request.providerId + " failed");
+                if (next < requests.size()) {
+                    request = requests.get(next++);
+                    pending.put(completion.submit(request), request);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted while waiting for providers");
+        } finally {
+            for (Map.Entry<Future<WeatherInfo>, ProviderRequest> entry : pending.entrySet()) {
+                if (DEBUG) Log.d(TAG, "cancel provider " + entry.getValue().providerId);
+                entry.getValue().provider.cancel();
+                entry.getKey().cancel(true);
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * The 90th percentile of the provider's recent latency clamped to
+     * [HEDGE_DELAY_MIN_MS, HEDGE_DELAY_MAX_MS] or HEDGE_DELAY_MS if unknown.
+     */
+    private long getHedgeDelay(String providerId) {
+        long p90 = ProviderHealth.get(this).getLatencyPercentile(providerId, 90);
+        if (p90 < 0) {
+            return HEDGE_DELAY_MS;
+        }
+        return Math.max(HEDGE_DELAY_MIN_MS, Math.min(p90, HEDGE_DELAY_MAX_MS));
+    }
+
     private boolean checkPermissions() {
         return checkSelfPermission(Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
     }
@@ -0,0 +1,83 @@
+/*
+ *  Copyright (C) 2026 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omnijaws;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The current weather kept in its own small file in the binary format of
+ * WeatherInfo.toBytes(). The file is replaced atomically on write and
+ * memory mapped on read.
+ */
+class WeatherSnapshot {
+    private static final String TAG = "WeatherService:WeatherSnapshot";
+    private static final String FILE_NAME = "weather.snapshot";
+
+    private WeatherSnapshot() {
+    }
+
+    static synchronized WeatherInfo read(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(file);
+                FileChannel channel = in.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return WeatherInfo.fromBytes(context, buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read weather snapshot", e);
+        }
+        return null;
+    }
+
+    static synchronized boolean write(Context context, WeatherInfo info) {
+        File file = getFile(context);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(info.toBytes());
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't write weather snapshot", e);
+            tmp.delete();
+            return false;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Couldn't replace weather snapshot");
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    static synchronized void delete(Context context) {
+        getFile(context).delete();
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+}
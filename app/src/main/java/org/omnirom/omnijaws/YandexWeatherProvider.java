@@ -9,17 +9,11 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -284,21 +278,7 @@ public class YandexWeatherProvider extends AbstractWeatherProvider {
     private String getRawWeather(String url) {
         HttpGet request = new HttpGet(url);
         // request.setHeader("X-Yandex-API-Key", "your api key");
-        try {
-            HttpResponse response = new DefaultHttpClient().execute(request);
-            int code = response.getStatusLine().getStatusCode();
-            if (code != HttpStatus.SC_OK) {
-                log(TAG, "HttpStatus: " + code + " for url: " + url);
-                return null;
-            }
-            HttpEntity entity = response.getEntity();
-            if (entity != null) {
-                return EntityUtils.toString(entity, "UTF-8");
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Couldn't retrieve data from url " + url, e);
-        }
-        return null;
+        return retrieve(request, "UTF-8");
     }
 
     public boolean shouldRetry() {
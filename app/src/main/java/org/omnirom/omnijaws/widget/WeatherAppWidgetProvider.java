@@ -37,20 +37,28 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.VectorDrawable;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.text.TextPaint;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.View;
-import android.widget.RemoteViews;
 
 import org.omnirom.omnijaws.R;
+import org.omnirom.omnijaws.client.OmniJawsClient;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class WeatherAppWidgetProvider extends AppWidgetProvider {
     private static final String TAG = "WeatherAppWidgetProvider";
@@ -63,6 +71,28 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     private static final int EXTRA_ERROR_LOCATION = 1;
     private static final int EXTRA_ERROR_DISABLED = 2;
 
+    // coalesces bursts of update triggers into one render pass
+    private static final long RENDER_DELAY = 250;
+
+    private static OmniJawsClient sWeatherClient;
+    private static Handler sRenderHandler;
+
+    // updates waiting for the render thread - guarded by sPendingIds
+    private static final Set<Integer> sPendingIds = new HashSet<Integer>();
+    private static final List<PendingResult> sPendingResults = new ArrayList<PendingResult>();
+    private static boolean sPendingAll;
+    private static boolean sRenderScheduled;
+
+    // rendered icons with their temperature text and shadow - the same tiles
+    // are needed again on every update until the forecast changes
+    private static final LruCache<String, Bitmap> sTileCache =
+            new LruCache<String, Bitmap>(4 * 1024 * 1024) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
     @Override
     public void onEnabled(Context context) {
         super.onEnabled(context);
@@ -87,6 +117,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
                 Log.i(TAG, "onDeleted: " + id);
             }
             WeatherAppWidgetConfigure.clearPrefs(context, id);
+            WidgetViews.remove(id);
         }
     }
 
@@ -105,24 +136,34 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     @Override
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
+        final Context appContext = context.getApplicationContext();
         if (LOGGING) {
             Log.i(TAG, "onReceive: " + action);
         }
         if (action.equals(WEATHER_UPDATE)
                 || Intent.ACTION_LOCALE_CHANGED.equals(action)) {
-            updateAllWeather(context);
+            scheduleUpdate(context, null, goAsync());
         }
         if (action.equals(REFRESH_BROADCAST)) {
-            showUpdateProgress(context);
-            OmniJawsClient weatherClient = new OmniJawsClient(context);
-            weatherClient.updateWeather();
+            post(context, new Runnable() {
+                @Override
+                public void run() {
+                    showUpdateProgress(appContext);
+                }
+            }, goAsync());
+            getWeatherClient(context).updateWeather();
         }
         if (action.equals(WEATHER_ERROR)) {
-            int errorReason = intent.getIntExtra(EXTRA_ERROR, 0);
+            final int errorReason = intent.getIntExtra(EXTRA_ERROR, 0);
             if (errorReason == EXTRA_ERROR_DISABLED) {
-                showErrorState(context, errorReason);
+                post(context, new Runnable() {
+                    @Override
+                    public void run() {
+                        showErrorState(appContext, errorReason);
+                    }
+                }, goAsync());
             } else {
-                updateAllWeather(context);
+                scheduleUpdate(context, null, goAsync());
             }
         }
         super.onReceive(context, intent);
@@ -131,6 +172,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         super.onUpdate(context, appWidgetManager, appWidgetIds);
+        scheduleUpdate(context, appWidgetIds, goAsync());
     }
 
     @Override
@@ -139,32 +181,127 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (LOGGING) {
             Log.i(TAG, "onAppWidgetOptionsChanged");
         }
-        updateWeather(context, appWidgetManager, appWidgetId);
+        scheduleUpdate(context, new int[] { appWidgetId }, goAsync());
     }
 
     public static void updateAfterConfigure(Context context, int appWidgetId) {
         if (LOGGING) {
             Log.i(TAG, "updateAfterConfigure");
         }
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        updateWeather(context, appWidgetManager, appWidgetId);
+        scheduleUpdate(context, new int[] { appWidgetId }, null);
+    }
+
+    /**
+     * Queues an update of the given widgets or of all widgets if null. Updates
+     * requested within RENDER_DELAY are rendered together on the render
+     * thread, the pending broadcast result is finished afterwards.
+     */
+    private static void scheduleUpdate(Context context, int[] appWidgetIds,
+            PendingResult result) {
+        final Context appContext = context.getApplicationContext();
+        getWeatherClient(appContext);
+        synchronized (sPendingIds) {
+            if (appWidgetIds == null) {
+                sPendingAll = true;
+            } else {
+                for (int appWidgetId : appWidgetIds) {
+                    sPendingIds.add(appWidgetId);
+                }
+            }
+            if (result != null) {
+                sPendingResults.add(result);
+            }
+            if (sRenderScheduled) {
+                return;
+            }
+            sRenderScheduled = true;
+        }
+        getRenderHandler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                renderPending(appContext);
+            }
+        }, RENDER_DELAY);
+    }
+
+    private static void post(Context context, final Runnable r, final PendingResult result) {
+        getWeatherClient(context);
+        getRenderHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    if (result != null) {
+                        result.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    private static synchronized Handler getRenderHandler() {
+        if (sRenderHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sRenderHandler = new Handler(thread.getLooper());
+        }
+        return sRenderHandler;
+    }
+
+    private static void renderPending(Context context) {
+        boolean all;
+        Set<Integer> ids;
+        List<PendingResult> results;
+        synchronized (sPendingIds) {
+            all = sPendingAll;
+            ids = new HashSet<Integer>(sPendingIds);
+            results = new ArrayList<PendingResult>(sPendingResults);
+            sPendingAll = false;
+            sPendingIds.clear();
+            sPendingResults.clear();
+            sRenderScheduled = false;
+        }
+        try {
+            if (all) {
+                updateAllWeather(context);
+            } else if (!sWeatherClient.isOmniJawsEnabled()) {
+                for (int appWidgetId : ids) {
+                    showError(context, AppWidgetManager.getInstance(context), appWidgetId,
+                            EXTRA_ERROR_DISABLED);
+                }
+            } else {
+                for (int appWidgetId : ids) {
+                    updateWeather(context, AppWidgetManager.getInstance(context), appWidgetId);
+                }
+            }
+        } finally {
+            for (PendingResult result : results) {
+                result.finish();
+            }
+        }
     }
 
-    public static void updateAllWeather(Context context) {
+    private static void updateAllWeather(Context context) {
         if (LOGGING) {
             Log.i(TAG, "updateAllWeather at = " + new Date());
         }
+        if (!sWeatherClient.isOmniJawsEnabled()) {
+            showErrorState(context, EXTRA_ERROR_DISABLED);
+            return;
+        }
         AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
         if (appWidgetManager != null) {
             ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
             int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
+            // widgets sharing an icon pack reuse the tiles rendered for the first one
             for (int appWidgetId : appWidgetIds) {
                 updateWeather(context, appWidgetManager, appWidgetId);
             }
         }
     }
 
-    public static void showUpdateProgress(Context context) {
+    private static void showUpdateProgress(Context context) {
         if (LOGGING) {
             Log.i(TAG, "showUpdateProgress");
         }
@@ -178,7 +315,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         }
     }
 
-    public static void showErrorState(Context context, int errorReason) {
+    private static void showErrorState(Context context, int errorReason) {
         if (LOGGING) {
             Log.i(TAG, "showErrorState " + errorReason);
         }
@@ -198,17 +335,18 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         if (LOGGING) {
             Log.i(TAG, "updateWeather " + appWidgetId);
         }
-        OmniJawsClient weatherClient = new OmniJawsClient(context);
-        weatherClient.queryWeather();
+        OmniJawsClient weatherClient = getWeatherClient(context);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         String iconPack = prefs.getString(WeatherAppWidgetConfigure.KEY_ICON_PACK + "_" + appWidgetId, "");
+        // the client is shared by all widgets
         if (!TextUtils.isEmpty(iconPack)) {
             weatherClient.loadIconPackage(iconPack);
+        } else {
+            weatherClient.loadDefaultIconsPackage();
         }
 
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
-        widget.setImageViewBitmap(R.id.refresh, shadow(context.getResources(),
-                context.getResources().getDrawable(R.drawable.ic_menu_refresh)).getBitmap());
+        WidgetViews widget = new WidgetViews(appWidgetId, R.layout.weather_appwidget);
+        widget.setImageViewBitmap(R.id.refresh, getRefreshTile(context.getResources()));
         Intent refreshIntent = new Intent();
         refreshIntent.setAction(REFRESH_BROADCAST);
         widget.setOnClickPendingIntent(R.id.refresh,
@@ -234,7 +372,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             widget.setViewVisibility(R.id.current_weather_data, View.GONE);
             widget.setTextViewText(R.id.no_weather_notice, context.getResources().getString(R.string.omnijaws_service_unknown));
             widget.setViewVisibility(R.id.no_weather_notice, View.VISIBLE);
-            appWidgetManager.partiallyUpdateAppWidget(appWidgetId, widget);
+            widget.partiallyUpdate(context, appWidgetManager);
             return;
         }
         if (LOGGING) {
@@ -265,10 +403,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         Calendar cal = Calendar.getInstance();
         String dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        Drawable d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(0).conditionCode);
-        BitmapDrawable bd = overlay(context.getResources(), d, weatherData.forecasts.get(0).low, weatherData.forecasts.get(0).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_0, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_0, getConditionTile(context.getResources(),
+                weatherClient, iconPack, weatherData.forecasts.get(0).conditionCode,
+                weatherData.forecasts.get(0).low, weatherData.forecasts.get(0).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_0, dayShort);
         widget.setViewVisibility(R.id.forecast_text_0, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_0, withForcast ? View.VISIBLE : View.GONE);
@@ -276,10 +413,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(1).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(1).low, weatherData.forecasts.get(1).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_1, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_1, getConditionTile(context.getResources(),
+                weatherClient, iconPack, weatherData.forecasts.get(1).conditionCode,
+                weatherData.forecasts.get(1).low, weatherData.forecasts.get(1).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_1, dayShort);
         widget.setViewVisibility(R.id.forecast_text_1, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_1, withForcast ? View.VISIBLE : View.GONE);
@@ -287,10 +423,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(2).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(2).low, weatherData.forecasts.get(2).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_2, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_2, getConditionTile(context.getResources(),
+                weatherClient, iconPack, weatherData.forecasts.get(2).conditionCode,
+                weatherData.forecasts.get(2).low, weatherData.forecasts.get(2).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_2, dayShort);
         widget.setViewVisibility(R.id.forecast_text_2, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_2, withForcast ? View.VISIBLE : View.GONE);
@@ -298,10 +433,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(3).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(3).low, weatherData.forecasts.get(3).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_3, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_3, getConditionTile(context.getResources(),
+                weatherClient, iconPack, weatherData.forecasts.get(3).conditionCode,
+                weatherData.forecasts.get(3).low, weatherData.forecasts.get(3).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_3, dayShort);
         widget.setViewVisibility(R.id.forecast_text_3, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_3, withForcast ? View.VISIBLE : View.GONE);
@@ -309,17 +443,16 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         cal.add(Calendar.DATE, 1);
         dayShort = sdf.format(new Date(cal.getTimeInMillis()));
 
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(4).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(4).low, weatherData.forecasts.get(4).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_4, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.forecast_image_4, getConditionTile(context.getResources(),
+                weatherClient, iconPack, weatherData.forecasts.get(4).conditionCode,
+                weatherData.forecasts.get(4).low, weatherData.forecasts.get(4).high, weatherData.tempUnits));
         widget.setTextViewText(R.id.forecast_text_4, dayShort);
         widget.setViewVisibility(R.id.forecast_text_4, showDays ? View.VISIBLE : View.GONE);
         widget.setViewVisibility(R.id.forecast_4, withForcast ? View.VISIBLE : View.GONE);
 
-        d = weatherClient.getWeatherConditionImage(weatherData.conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.temp, null, weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.current_image, bd.getBitmap());
+        widget.setImageViewBitmap(R.id.current_image, getConditionTile(context.getResources(),
+                weatherClient, iconPack, weatherData.conditionCode, weatherData.temp, null,
+                weatherData.tempUnits));
         widget.setTextViewText(R.id.current_text, context.getResources().getText(R.string.omnijaws_current_text));
         widget.setViewVisibility(R.id.current_text, showDays ? View.VISIBLE : View.GONE);
 
@@ -328,7 +461,26 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setTextViewText(R.id.current_weather_data, weatherData.windSpeed + " " + weatherData.windUnits + " "
                 + weatherData.pinWheel + " - " + weatherData.humidity);
 
-        appWidgetManager.updateAppWidget(appWidgetId, widget);
+        // only the views that changed since the last update are sent
+        widget.update(context, appWidgetManager);
+    }
+
+    /**
+     * One client for the process that keeps the last weather in memory and
+     * redraws the widgets when the provider notifies a change.
+     */
+    private static synchronized OmniJawsClient getWeatherClient(Context context) {
+        if (sWeatherClient == null) {
+            final Context appContext = context.getApplicationContext();
+            sWeatherClient = new OmniJawsClient(appContext);
+            sWeatherClient.addObserver(new OmniJawsClient.OmniJawsObserver() {
+                @Override
+                public void weatherUpdated() {
+                    scheduleUpdate(appContext, null, null);
+                }
+            });
+        }
+        return sWeatherClient;
     }
 
     private static void showProgress(
@@ -338,11 +490,11 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             Log.i(TAG, "showProgress " + appWidgetId);
         }
 
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
+        WidgetViews widget = new WidgetViews(appWidgetId, R.layout.weather_appwidget);
         widget.setViewVisibility(R.id.condition_line, View.GONE);
         widget.setViewVisibility(R.id.progress_container, View.VISIBLE);
 
-        appWidgetManager.partiallyUpdateAppWidget(appWidgetId, widget);
+        widget.partiallyUpdate(context, appWidgetManager);
     }
 
     private static void showError(
@@ -352,7 +504,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             Log.i(TAG, "showError " + appWidgetId + " errorReason = " + errorReason);
         }
 
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
+        WidgetViews widget = new WidgetViews(appWidgetId, R.layout.weather_appwidget);
         initWidget(widget);
 
         if (errorReason == EXTRA_ERROR_DISABLED) {
@@ -369,10 +521,10 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             widget.setViewVisibility(R.id.no_weather_notice, View.GONE);
         }
 
-        appWidgetManager.partiallyUpdateAppWidget(appWidgetId, widget);
+        widget.partiallyUpdate(context, appWidgetManager);
     }
 
-    private static void initWidget(RemoteViews widget) {
+    private static void initWidget(WidgetViews widget) {
         widget.setViewVisibility(R.id.progress_container, View.GONE);
         widget.setViewVisibility(R.id.condition_line, View.VISIBLE);
         widget.setViewVisibility(R.id.timestamp_container, View.VISIBLE);
@@ -383,6 +535,35 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setViewVisibility(R.id.refresh, View.VISIBLE);
     }
 
+    private static Bitmap getConditionTile(Resources resources, OmniJawsClient weatherClient,
+            String iconPack, int conditionCode, String min, String max, String tempUnits) {
+        String key = iconPack + "@" + OmniJawsClient.getIconGeneration() + "_" + conditionCode
+                + ":" + min + "/" + max + tempUnits + ":" + getDisplayKey(resources);
+        Bitmap tile = sTileCache.get(key);
+        if (tile == null) {
+            Drawable d = weatherClient.getWeatherConditionImage(conditionCode);
+            tile = overlay(resources, d, min, max, tempUnits).getBitmap();
+            sTileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    private static Bitmap getRefreshTile(Resources resources) {
+        String key = "refresh:" + getDisplayKey(resources);
+        Bitmap tile = sTileCache.get(key);
+        if (tile == null) {
+            tile = shadow(resources, resources.getDrawable(R.drawable.ic_menu_refresh)).getBitmap();
+            sTileCache.put(key, tile);
+        }
+        return tile;
+    }
+
+    // tiles depend on the icon size and the text size
+    private static String getDisplayKey(Resources resources) {
+        return resources.getDisplayMetrics().densityDpi + "/"
+                + resources.getConfiguration().fontScale;
+    }
+
     private static BitmapDrawable overlay(Resources resources, Drawable image, String min, String max, String tempUnits) {
         if (image instanceof VectorDrawable) {
             image = applyTint(image);
@@ -0,0 +1,180 @@
+/*
+* Copyright (C) 2026 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.widget;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the view values of one widget update like RemoteViews does and
+ * only sends the values that differ from what the widget got last time.
+ * Bitmaps are compared by identity which matches the reused tiles. They are
+ * only weakly referenced once sent so tiles evicted from the tile cache can
+ * be freed.
+ */
+class WidgetViews {
+    private static final String TAG = "WidgetViews";
+    private static final boolean LOGGING = false;
+
+    private static final int TEXT = 0;
+    private static final int VISIBILITY = 1;
+    private static final int BITMAP = 2;
+    private static final int CLICK = 3;
+
+    // values last sent per widget id
+    private static final SparseArray<Map<Long, Object>> sSentValues =
+            new SparseArray<Map<Long, Object>>();
+
+    private final int mAppWidgetId;
+    private final int mLayoutId;
+    private final Map<Long, Object> mValues = new LinkedHashMap<Long, Object>();
+
+    WidgetViews(int appWidgetId, int layoutId) {
+        mAppWidgetId = appWidgetId;
+        mLayoutId = layoutId;
+    }
+
+    void setTextViewText(int viewId, CharSequence text) {
+        mValues.put(key(TEXT, viewId), text);
+    }
+
+    void setViewVisibility(int viewId, int visibility) {
+        mValues.put(key(VISIBILITY, viewId), visibility);
+    }
+
+    void setImageViewBitmap(int viewId, Bitmap bitmap) {
+        mValues.put(key(BITMAP, viewId), bitmap);
+    }
+
+    void setOnClickPendingIntent(int viewId, PendingIntent pendingIntent) {
+        mValues.put(key(CLICK, viewId), pendingIntent);
+    }
+
+    /**
+     * Sends the changed values. The first update of a widget in this process
+     * replaces its views completely.
+     */
+    void update(Context context, AppWidgetManager appWidgetManager) {
+        synchronized (sSentValues) {
+            Map<Long, Object> sent = sSentValues.get(mAppWidgetId);
+            if (sent == null) {
+                appWidgetManager.updateAppWidget(mAppWidgetId, build(context, mValues));
+                sent = new HashMap<Long, Object>();
+                putSent(sent, mValues);
+                sSentValues.put(mAppWidgetId, sent);
+                return;
+            }
+            sendChanges(context, appWidgetManager, sent);
+        }
+    }
+
+    /**
+     * Sends the changed values on top of the current views of the widget.
+     */
+    void partiallyUpdate(Context context, AppWidgetManager appWidgetManager) {
+        synchronized (sSentValues) {
+            Map<Long, Object> sent = sSentValues.get(mAppWidgetId);
+            if (sent == null) {
+                // unknown what the widget shows - send all and keep it unknown
+                appWidgetManager.partiallyUpdateAppWidget(mAppWidgetId, build(context, mValues));
+                return;
+            }
+            sendChanges(context, appWidgetManager, sent);
+        }
+    }
+
+    static void remove(int appWidgetId) {
+        synchronized (sSentValues) {
+            sSentValues.remove(appWidgetId);
+        }
+    }
+
+    private void sendChanges(Context context, AppWidgetManager appWidgetManager,
+            Map<Long, Object> sent) {
+        Map<Long, Object> changes = new LinkedHashMap<Long, Object>();
+        for (Map.Entry<Long, Object> entry : mValues.entrySet()) {
+            if (!isSame(sent.get(entry.getKey()), entry.getValue())) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (LOGGING) Log.i(TAG, "widget " + mAppWidgetId + " changed " + changes.size()
+                + "/" + mValues.size());
+        if (changes.isEmpty()) {
+            return;
+        }
+        appWidgetManager.partiallyUpdateAppWidget(mAppWidgetId, build(context, changes));
+        putSent(sent, changes);
+    }
+
+    private static void putSent(Map<Long, Object> sent, Map<Long, Object> values) {
+        for (Map.Entry<Long, Object> entry : values.entrySet()) {
+            Object value = entry.getValue();
+            sent.put(entry.getKey(), value instanceof Bitmap
+                    ? new WeakReference<Bitmap>((Bitmap) value) : value);
+        }
+    }
+
+    private RemoteViews build(Context context, Map<Long, Object> values) {
+        RemoteViews views = new RemoteViews(context.getPackageName(), mLayoutId);
+        for (Map.Entry<Long, Object> entry : values.entrySet()) {
+            int kind = (int) (entry.getKey() >>> 32);
+            int viewId = (int) (long) entry.getKey();
+            Object value = entry.getValue();
+            switch (kind) {
+                case TEXT:
+                    views.setTextViewText(viewId, (CharSequence) value);
+                    break;
+                case VISIBILITY:
+                    views.setViewVisibility(viewId, (Integer) value);
+                    break;
+                case BITMAP:
+                    views.setImageViewBitmap(viewId, (Bitmap) value);
+                    break;
+                case CLICK:
+                    views.setOnClickPendingIntent(viewId, (PendingIntent) value);
+                    break;
+            }
+        }
+        return views;
+    }
+
+    private static boolean isSame(Object sent, Object value) {
+        if (value instanceof Bitmap) {
+            return sent instanceof WeakReference && ((WeakReference<?>) sent).get() == value;
+        }
+        if (value instanceof CharSequence && sent instanceof CharSequence) {
+            return TextUtils.equals((CharSequence) sent, (CharSequence) value);
+        }
+        return value != null ? value.equals(sent) : sent == null;
+    }
+
+    private static long key(int kind, int viewId) {
+        return ((long) kind << 32) | (viewId & 0xffffffffL);
+    }
+}
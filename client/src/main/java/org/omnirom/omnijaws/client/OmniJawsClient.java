@@ -0,0 +1,613 @@
+/*
+* Copyright (C) 2016 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omnijaws.client;
+
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseIntArray;
+
+/**
+ * Client of the OmniJaws weather service used by the app itself and by
+ * third party consumers.
+ */
+public class OmniJawsClient {
+    private static final String TAG = "OmniJawsClient";
+    private static final boolean DEBUG = false;
+    public static final String SERVICE_PACKAGE = "org.omnirom.omnijaws";
+    public static final Uri WEATHER_URI
+            = Uri.parse("content://org.omnirom.omnijaws.provider/weather");
+    public static final Uri SETTINGS_URI
+            = Uri.parse("content://org.omnirom.omnijaws.provider/settings");
+
+    private static final String ICON_PACKAGE_DEFAULT = "org.omnirom.omnijaws";
+    private static final String ICON_PREFIX_DEFAULT = "outline";
+
+    public static final String[] WEATHER_PROJECTION = new String[]{
+            "city",
+            "wind_speed",
+            "wind_direction",
+            "condition_code",
+            "temperature",
+            "humidity",
+            "condition",
+            "forecast_low",
+            "forecast_high",
+            "forecast_condition",
+            "forecast_condition_code",
+            "time_stamp",
+            "forecast_date",
+            "pin_wheel"
+    };
+
+    public static final String[] SETTINGS_PROJECTION = new String[] {
+            "enabled",
+            "units"
+    };
+
+    private static final String METHOD_GET_WEATHER = "getWeather";
+
+    private static final DecimalFormat sNoDigitsFormat = new DecimalFormat("0");
+
+    // decoded condition icons of all clients keyed by pack, prefix, code and density
+    private static final LruCache<String, Drawable.ConstantState> sIconCache =
+            new LruCache<String, Drawable.ConstantState>(64);
+    // bumped when an icon pack changed so clients reload its resources
+    private static volatile int sIconGeneration;
+    private static boolean sPackageReceiverRegistered;
+
+    private static final BroadcastReceiver sPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                // a pack that is added may be the one that was missing before
+                // and clients fell back to the default icons for
+                invalidateIcons(data.getSchemeSpecificPart(),
+                        !Intent.ACTION_PACKAGE_CHANGED.equals(intent.getAction()));
+            }
+        }
+    };
+
+    public interface OmniJawsObserver {
+        /**
+         * The weather or the settings of the provider changed. Called on the
+         * main thread.
+         */
+        void weatherUpdated();
+    }
+
+    public static class WeatherInfo {
+        public String city;
+        public String windSpeed;
+        public String windDirection;
+        public int conditionCode;
+        public String temp;
+        public String humidity;
+        public String condition;
+        public Long timeStamp;
+        public List<DayForecast> forecasts;
+        public String tempUnits;
+        public String windUnits;
+        public String pinWheel;
+
+        public String toString() {
+            return city + ":" + new Date(timeStamp) + ": " + windSpeed + ":" + windDirection + ":" +conditionCode + ":" + temp + ":" + humidity + ":" + condition + ":" + tempUnits + ":" + windUnits + ": " + forecasts;
+        }
+
+        public String getLastUpdateTime() {
+            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+            return sdf.format(new Date(timeStamp));
+        }
+    }
+
+    public static class DayForecast {
+        public String low;
+        public String high;
+        public int conditionCode;
+        public String condition;
+        public String date;
+
+        public String toString() {
+            return "[" + low + ":" + high + ":" +conditionCode + ":" + condition + ":" + date + "]";
+        }
+    }
+
+    private Context mContext;
+    private WeatherInfo mCachedInfo;
+    private boolean mInstalled;
+    private boolean mMetric;
+    private boolean mOmniJawsEnabled;
+    private final List<OmniJawsObserver> mObservers = new ArrayList<OmniJawsObserver>();
+    private ContentObserver mContentObserver;
+    // set when the provider notified a change since the last query
+    private volatile boolean mDirty = true;
+    private int mVersion;
+    // cursor column of each entry of WEATHER_PROJECTION
+    private int[] mWeatherColumns;
+
+    private Resources mRes;
+    private String mPackageName;
+    private String mIconPrefix;
+    private String mSettingIconPackage;
+    // condition code to drawable id in the current icon pack
+    private final SparseIntArray mIconIds = new SparseIntArray();
+    private int mIconGeneration;
+
+    public OmniJawsClient(Context context) {
+        mContext = context;
+        mInstalled = isAvailableApp(SERVICE_PACKAGE);
+        registerPackageReceiver(context);
+        loadDefaultIconsPackage();
+    }
+
+    public void updateWeather() {
+        updateWeather(false);
+    }
+
+    public void updateWeather(boolean force) {
+        if (mInstalled) {
+            Intent updateIntent = new Intent(Intent.ACTION_MAIN)
+                    .setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".WeatherService");
+            updateIntent.setAction(SERVICE_PACKAGE + ".ACTION_UPDATE");
+            updateIntent.putExtra("force", force);
+            mContext.startService(updateIntent);
+        }
+    }
+
+    public void startSettings() {
+        Intent settings = getSettingsIntent();
+        if (settings != null) {
+            mContext.startActivity(settings);
+        }
+    }
+
+    public Intent getSettingsIntent() {
+        if (mInstalled) {
+            Intent settings = new Intent(Intent.ACTION_MAIN)
+                    .setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".SettingsActivity");
+            return settings;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the weather of the last query. While observers are registered
+     * the provider is only queried again once it notified a change.
+     */
+    public synchronized WeatherInfo getWeatherInfo() {
+        if (mDirty || mContentObserver == null) {
+            queryWeather();
+        }
+        return mCachedInfo;
+    }
+
+    /**
+     * Incremented with every query of the provider so callers can tell
+     * whether the weather they hold is still the current one.
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Must be called on the main thread. The first observer starts listening
+     * to changes of the provider.
+     */
+    public void addObserver(OmniJawsObserver observer) {
+        if (mObservers.isEmpty()) {
+            registerContentObserver();
+        }
+        if (!mObservers.contains(observer)) {
+            mObservers.add(observer);
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void removeObserver(OmniJawsObserver observer) {
+        mObservers.remove(observer);
+        if (mObservers.isEmpty() && mContentObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mContentObserver);
+            mContentObserver = null;
+            // changes are not seen anymore
+            mDirty = true;
+        }
+    }
+
+    private void registerContentObserver() {
+        mContentObserver = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (DEBUG) Log.d(TAG, "onChange");
+                mDirty = true;
+                for (OmniJawsObserver observer : new ArrayList<OmniJawsObserver>(mObservers)) {
+                    observer.weatherUpdated();
+                }
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(WEATHER_URI, false,
+                mContentObserver);
+        mContext.getContentResolver().registerContentObserver(SETTINGS_URI, false,
+                mContentObserver);
+        mDirty = true;
+    }
+
+    private static String getFormattedValue(float value) {
+        if (Float.isNaN(value)) {
+            return "-";
+        }
+        String formatted = sNoDigitsFormat.format(value);
+        if (formatted.equals("-0")) {
+            formatted = "0";
+        }
+        return formatted;
+    }
+
+    public synchronized void queryWeather() {
+        // cleared first so a change notified while querying is not lost
+        mDirty = false;
+        mVersion++;
+        Bundle result = null;
+        if (mInstalled) {
+            try {
+                // weather, units and enabled state in one round trip
+                result = mContext.getContentResolver().call(WEATHER_URI, METHOD_GET_WEATHER,
+                        null, null);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Weather provider not available", e);
+            }
+        }
+        if (result == null) {
+            // service without the call() API
+            queryWeatherFromCursors();
+            return;
+        }
+        mCachedInfo = null;
+        mOmniJawsEnabled = result.getBoolean("enabled", true);
+        if (!mOmniJawsEnabled) {
+            Log.w(TAG, "queryWeather while disabled");
+            return;
+        }
+        if (result.containsKey("city")) {
+            mCachedInfo = fromBundle(result);
+        }
+        setMetric(result.getInt("units", 0) == 0);
+        if (DEBUG) Log.d(TAG, "queryWeather " + mCachedInfo);
+    }
+
+    private WeatherInfo fromBundle(Bundle result) {
+        WeatherInfo info = new WeatherInfo();
+        info.city = result.getString("city");
+        info.windSpeed = getFormattedValue(result.getFloat("wind_speed"));
+        info.windDirection = String.valueOf(result.getInt("wind_direction")) + "\u00b0";
+        info.conditionCode = result.getInt("condition_code");
+        info.temp = getFormattedValue(result.getFloat("temperature"));
+        info.humidity = result.getString("humidity");
+        info.condition = result.getString("condition");
+        info.timeStamp = Long.valueOf(result.getString("time_stamp"));
+        info.pinWheel = result.getString("pin_wheel");
+        float[] low = result.getFloatArray("forecast_low");
+        float[] high = result.getFloatArray("forecast_high");
+        String[] condition = result.getStringArray("forecast_condition");
+        int[] conditionCode = result.getIntArray("forecast_condition_code");
+        String[] date = result.getStringArray("forecast_date");
+        List<DayForecast> forecastList = new ArrayList<DayForecast>();
+        for (int i = 0; low != null && i < low.length; i++) {
+            DayForecast day = new DayForecast();
+            day.low = getFormattedValue(low[i]);
+            day.high = getFormattedValue(high[i]);
+            day.condition = condition[i];
+            day.conditionCode = conditionCode[i];
+            day.date = date[i];
+            forecastList.add(day);
+        }
+        info.forecasts = forecastList;
+        return info;
+    }
+
+    private void queryWeatherFromCursors() {
+        mCachedInfo = null;
+        mOmniJawsEnabled = queryEnabled();
+        if (!mOmniJawsEnabled) {
+            Log.w(TAG, "queryWeather while disabled");
+            return;
+        }
+        Cursor c = mContext.getContentResolver().query(WEATHER_URI, WEATHER_PROJECTION,
+                null, null, null);
+        if (c != null) {
+            try {
+                int count = c.getCount();
+                if (count > 0) {
+                    int[] col = getWeatherColumns(c);
+                    mCachedInfo = new WeatherInfo();
+                    List<DayForecast> forecastList = new ArrayList<DayForecast>();
+                    for (int i = 0; i < count; i++) {
+                        c.moveToPosition(i);
+                        if (i == 0) {
+                            mCachedInfo.city = c.getString(col[0]);
+                            mCachedInfo.windSpeed = getFormattedValue(c.getFloat(col[1]));
+                            mCachedInfo.windDirection = String.valueOf(c.getInt(col[2])) + "\u00b0";
+                            mCachedInfo.conditionCode = c.getInt(col[3]);
+                            mCachedInfo.temp = getFormattedValue(c.getFloat(col[4]));
+                            mCachedInfo.humidity = c.getString(col[5]);
+                            mCachedInfo.condition = c.getString(col[6]);
+                            mCachedInfo.timeStamp = Long.valueOf(c.getString(col[11]));
+                            mCachedInfo.pinWheel = col[13] != -1 ? c.getString(col[13]) : null;
+                        } else {
+                            DayForecast day = new DayForecast();
+                            day.low = getFormattedValue(c.getFloat(col[7]));
+                            day.high = getFormattedValue(c.getFloat(col[8]));
+                            day.condition = c.getString(col[9]);
+                            day.conditionCode = c.getInt(col[10]);
+                            day.date = c.getString(col[12]);
+                            forecastList.add(day);
+                        }
+                    }
+                    mCachedInfo.forecasts = forecastList;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        updateUnits();
+        if (DEBUG) Log.d(TAG, "queryWeather " + mCachedInfo);
+    }
+
+    // the column lookup is done once - the provider does not change its columns
+    private int[] getWeatherColumns(Cursor c) {
+        if (mWeatherColumns == null || mWeatherColumns.length != WEATHER_PROJECTION.length) {
+            int[] columns = new int[WEATHER_PROJECTION.length];
+            for (int i = 0; i < WEATHER_PROJECTION.length; i++) {
+                columns[i] = c.getColumnIndex(WEATHER_PROJECTION[i]);
+            }
+            mWeatherColumns = columns;
+        }
+        return mWeatherColumns;
+    }
+
+    public void loadDefaultIconsPackage() {
+        if (ICON_PACKAGE_DEFAULT.equals(mPackageName) && ICON_PREFIX_DEFAULT.equals(mIconPrefix)
+                && isIconPackLoaded()) {
+            return;
+        }
+        setIconPackage(ICON_PACKAGE_DEFAULT, ICON_PREFIX_DEFAULT);
+        if (DEBUG) Log.d(TAG, "Load default icon pack " + mSettingIconPackage + " " + mPackageName + " " + mIconPrefix);
+        if (mRes == null) {
+            Log.w(TAG, "No default package found");
+        }
+    }
+
+    public void loadIconPackage(String iconPack) {
+        if (iconPack.equals(mSettingIconPackage) && isIconPackLoaded()) {
+            return;
+        }
+        int idx = iconPack.lastIndexOf(".");
+        setIconPackage(iconPack.substring(0, idx), iconPack.substring(idx + 1));
+        if (DEBUG) Log.d(TAG, "Load custom icon pack " + mSettingIconPackage + " " + mPackageName + " " + mIconPrefix);
+        if (mRes == null) {
+            Log.w(TAG, "Icon pack loading failed - loading default");
+            loadDefaultIconsPackage();
+        }
+    }
+
+    private void setIconPackage(String packageName, String prefix) {
+        mPackageName = packageName;
+        mIconPrefix = prefix;
+        mSettingIconPackage = mPackageName + "." + mIconPrefix;
+        mIconIds.clear();
+        mIconGeneration = sIconGeneration;
+        try {
+            PackageManager packageManager = mContext.getPackageManager();
+            mRes = packageManager.getResourcesForApplication(mPackageName);
+        } catch (Exception e) {
+            mRes = null;
+        }
+    }
+
+    /**
+     * Changes whenever an icon pack was updated or removed, for callers that
+     * keep images derived from the condition icons.
+     */
+    public static int getIconGeneration() {
+        return sIconGeneration;
+    }
+
+    private boolean isIconPackLoaded() {
+        return mRes != null && mIconGeneration == sIconGeneration;
+    }
+
+    public Drawable getWeatherConditionImage(int conditionCode) {
+        if (!isOmniJawsEnabled()) {
+            Log.w(TAG, "Requesting condition image while disabled");
+            return null;
+        }
+        if (mIconGeneration != sIconGeneration) {
+            // the icon pack was updated or removed
+            loadIconPackage(mSettingIconPackage);
+        }
+        if (mRes == null) {
+            Log.w(TAG, "Requesting condition image while no icon pack is loaded");
+            return null;
+        }
+        String key = mPackageName + "/" + mIconPrefix + "_" + conditionCode + "@"
+                + mContext.getResources().getDisplayMetrics().densityDpi;
+        Drawable.ConstantState state = sIconCache.get(key);
+        if (state != null) {
+            return state.newDrawable(mRes);
+        }
+        try {
+            int resId = mIconIds.get(conditionCode, -1);
+            if (resId == -1) {
+                resId = mRes.getIdentifier(mIconPrefix + "_" + conditionCode, "drawable", mPackageName);
+                mIconIds.put(conditionCode, resId);
+            }
+            Drawable d = mRes.getDrawable(resId);
+            if (d.getConstantState() != null) {
+                sIconCache.put(key, d.getConstantState());
+            }
+            return d;
+        } catch(Exception e) {
+            Log.w(TAG, "Failed to get condition image for " + conditionCode);
+            if (!isAvailableApp(mPackageName)) {
+                Log.w(TAG, "Icon pack no longer available - loading default " + mPackageName);
+                loadDefaultIconsPackage();
+            }
+            return null;
+        }
+    }
+
+    private static synchronized void registerPackageReceiver(Context context) {
+        if (sPackageReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(sPackageReceiver, filter);
+        sPackageReceiverRegistered = true;
+    }
+
+    private static void invalidateIcons(String packageName, boolean always) {
+        boolean changed = always;
+        for (String key : sIconCache.snapshot().keySet()) {
+            if (key.startsWith(packageName + "/")) {
+                sIconCache.remove(key);
+                changed = true;
+            }
+        }
+        if (changed) {
+            if (DEBUG) Log.d(TAG, "Icon pack changed " + packageName);
+            sIconGeneration++;
+        }
+    }
+
+    public boolean isOmniJawsServiceInstalled() {
+        return mInstalled;
+    }
+
+    public boolean isOmniJawsEnabled() {
+        if (!mInstalled) {
+            return false;
+        }
+        if (mContentObserver != null && !mDirty) {
+            return mOmniJawsEnabled;
+        }
+        return queryEnabled();
+    }
+
+    private boolean queryEnabled() {
+        if (!mInstalled) {
+            return false;
+        }
+        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
+                null, null, null);
+        if (c != null) {
+            try {
+                int count = c.getCount();
+                if (count == 1) {
+                    c.moveToPosition(0);
+                    return c.getInt(0) == 1;
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return true;
+    }
+
+    public void setOmniJawsEnabled(boolean value) {
+        if (mInstalled) {
+            Intent updateIntent = new Intent(Intent.ACTION_MAIN)
+                    .setClassName(SERVICE_PACKAGE, SERVICE_PACKAGE + ".WeatherService");
+            updateIntent.setAction(SERVICE_PACKAGE + ".ACTION_ENABLE");
+            updateIntent.putExtra("enable", value);
+            mContext.startService(updateIntent);
+        }
+    }
+
+    private void updateUnits() {
+        if (!mInstalled) {
+            return;
+        }
+        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
+                null, null, null);
+        if (c != null) {
+            try {
+                int count = c.getCount();
+                if (count == 1) {
+                    c.moveToPosition(0);
+                    setMetric(c.getInt(1) == 0);
+                }
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    private void setMetric(boolean metric) {
+        mMetric = metric;
+        if (mCachedInfo != null) {
+            mCachedInfo.tempUnits = getTemperatureUnit();
+            mCachedInfo.windUnits = getWindUnit();
+        }
+    }
+
+    private String getTemperatureUnit() {
+        return "\u00b0" + (mMetric ? "C" : "F");
+    }
+
+    private String getWindUnit() {
+        return mMetric ? "km/h":"mph";
+    }
+
+    private boolean isAvailableApp(String packageName) {
+        final PackageManager pm = mContext.getPackageManager();
+        try {
+            pm.getPackageInfo(packageName, PackageManager.GET_ACTIVITIES);
+            int enabled = pm.getApplicationEnabledSetting(packageName);
+            return enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED &&
+                    enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER;
+        } catch (NameNotFoundException e) {
+            return false;
+        }
+    }
+}